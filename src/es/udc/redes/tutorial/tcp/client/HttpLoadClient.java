@@ -0,0 +1,408 @@
+package es.udc.redes.tutorial.tcp.client;
+
+import java.net.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements an HTTP load generator using TCP, to measure the capacity of the
+ * WebServer against localhost.
+ * In closed-loop mode (default) each of the connections sends a petition as
+ * soon as the previous answer arrives. In open-loop mode ("-r rate") the
+ * petitions are sent at a fixed rate shared by the connections, whether the
+ * previous answers have arrived or not.
+ * The latency is measured from the moment each petition should have been sent,
+ * so a slow answer also counts against the petitions delayed behind it
+ * (coordinated omission correction). In closed-loop mode there is no schedule,
+ * so the recorded latencies are corrected afterwards taking the median as the
+ * expected interval between petitions. The service time, from the real send
+ * to the answer, is also given. The answers of the first warmup seconds aren't counted.
+ */
+public class HttpLoadClient {
+    private static final String FORMAT = "Format: HttpLoadClient <server_address> <port_number> [-c connections]"
+            + " [-r petitions_per_second] [-d seconds] [-w warmup_seconds] [-k true|false] <url>[=weight]...";
+
+    public static void main(String argv[]) {
+        if (argv.length < 3) {
+            System.err.println(FORMAT);
+            System.exit(-1);
+        }
+        int connections = 16;
+        double rate = 0;
+        int seconds = 10;
+        int warmup = 0;
+        boolean keepAlive = true;
+        List<String> urls = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        InetAddress serverAddress;
+        int serverPort;
+        try {
+            // Obtains the server IP address and port
+            serverAddress = InetAddress.getByName(argv[0]);
+            serverPort = Integer.parseInt(argv[1]);
+            for (int i = 2; i < argv.length; i++) {
+                switch (argv[i]) {
+                    case "-c": connections = Integer.parseInt(argv[++i]); break;
+                    case "-r": rate = Double.parseDouble(argv[++i]); break;
+                    case "-d": seconds = Integer.parseInt(argv[++i]); break;
+                    case "-w": warmup = Integer.parseInt(argv[++i]); break;
+                    case "-k": keepAlive = Boolean.parseBoolean(argv[++i]); break;
+                    default:
+                        // A URL of the mix, with an optional weight: "/index.html=3"
+                        int equals = argv[i].lastIndexOf('=');
+                        if (equals > 0 && argv[i].indexOf('?') < 0) {
+                            urls.add(argv[i].substring(0, equals));
+                            weights.add(Integer.parseInt(argv[i].substring(equals + 1)));
+                        } else {
+                            urls.add(argv[i]);
+                            weights.add(1);
+                        }
+                }
+            }
+        } catch (UnknownHostException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(FORMAT);
+            System.exit(-1);
+            return;
+        }
+        if (urls.isEmpty() || connections <= 0 || seconds <= 0 || warmup < 0) {
+            System.err.println(FORMAT);
+            System.exit(-1);
+        }
+
+        Load load = new Load(new InetSocketAddress(serverAddress, serverPort), urls, weights, keepAlive,
+                rate > 0 ? (long) (1e9 / rate) : 0, warmup * 1000000000L, seconds * 1000000000L);
+        System.out.println("CLIENT: " + (rate > 0 ? "Open loop at " + rate + " petitions/s" : "Closed loop") + ", "
+                + connections + " connections, keep-alive " + keepAlive + ", " + seconds + " s after " + warmup + " s of warmup against "
+                + serverAddress + " port " + serverPort);
+        Worker[] workers = new Worker[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(load);
+            workers[i].start();
+        }
+        Histogram latency = new Histogram();
+        Histogram service = new Histogram();
+        long answers = 0;
+        long failed = 0;
+        long errors = 0;
+        long bytes = 0;
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latency.add(worker.latency);
+            service.add(worker.service);
+            answers += worker.answers;
+            failed += worker.failed;
+            errors += worker.errors;
+            bytes += worker.bytes;
+        }
+        long elapsed = System.nanoTime() - load.measureStart;
+        // Without a schedule the correction takes the median as the expected interval
+        if (rate <= 0) latency = latency.corrected(latency.percentile(50));
+
+        System.out.printf("CLIENT: %d answers, %d with status >= 400, %d errors in %.1f s%n",
+                answers, failed, errors, elapsed / 1e9);
+        System.out.printf("CLIENT: %.1f petitions/s, %.2f MB/s%n", answers * 1e9 / elapsed, bytes * 1e3 / elapsed);
+        System.out.println("CLIENT: Latency (ms)      p50      p90      p99    p99.9      max");
+        latency.print("corrected");
+        service.print("service time");
+    }
+
+    /**
+     * The petitions to send: the server, the URL mix and the schedule of the open loop.
+     */
+    private static final class Load {
+        private final InetSocketAddress server;
+        private final List<String> urls;
+        private final int[] cumulativeWeights;
+        private final boolean keepAlive;
+        private final long intervalNanos;
+        private final long start = System.nanoTime();
+        // Answers to petitions sent before this time aren't counted
+        private final long measureStart;
+        private final long end;
+        // Next petition of the open loop schedule
+        private final AtomicLong ticket = new AtomicLong();
+
+        Load(InetSocketAddress server, List<String> urls, List<Integer> weights, boolean keepAlive,
+                long intervalNanos, long warmupNanos, long durationNanos) {
+            this.server = server;
+            this.urls = urls;
+            this.cumulativeWeights = new int[weights.size()];
+            int total = 0;
+            for (int i = 0; i < weights.size(); i++) cumulativeWeights[i] = total += weights.get(i);
+            this.keepAlive = keepAlive;
+            this.intervalNanos = intervalNanos;
+            this.measureStart = start + warmupNanos;
+            this.end = measureStart + durationNanos;
+        }
+
+        String nextUrl() {
+            int choice = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (choice < cumulativeWeights[i]) return urls.get(i);
+            }
+            return urls.get(0);
+        }
+
+        /**
+         * Gives the time when the next petition must be sent.
+         * @return a long with the time in System.nanoTime() scale.
+         */
+        long nextSendTime() {
+            return intervalNanos > 0 ? start + ticket.getAndIncrement() * intervalNanos : System.nanoTime();
+        }
+    }
+
+    /**
+     * A connection sending petitions until the end of the test.
+     */
+    private static final class Worker extends Thread {
+        private final Load load;
+        private final Histogram latency = new Histogram();
+        private final Histogram service = new Histogram();
+        private long answers;
+        private long failed;
+        private long errors;
+        private long bytes;
+        // Size of the body of the last answer
+        private long bodyLength;
+        private Socket socket;
+        private InputStream sInput;
+        private OutputStream sOutput;
+        private final byte[] buffer = new byte[8192];
+
+        Worker(Load load) {
+            this.load = load;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long intended = load.nextSendTime();
+                if (intended >= load.end) break;
+                // Waits for the time of the petition on the open loop
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                long sent = System.nanoTime();
+                try {
+                    int status = exchange(load.nextUrl());
+                    long received = System.nanoTime();
+                    if (intended < load.measureStart) continue;
+                    latency.record((received - intended) / 1000);
+                    service.record((received - sent) / 1000);
+                    answers++;
+                    bytes += bodyLength;
+                    if (status >= 400) failed++;
+                } catch (IOException e) {
+                    if (intended >= load.measureStart) errors++;
+                    close();
+                }
+            }
+            close();
+        }
+
+        /**
+         * Sends a petition and reads the whole answer.
+         * @return the status code of the answer.
+         */
+        private int exchange(String url) throws IOException {
+            if (socket == null) {
+                // Creates the socket and establishes connection with the server
+                socket = new Socket();
+                socket.connect(load.server, 10000);
+                socket.setTcpNoDelay(true);
+                // Set a max. Timeout of 30 secs
+                socket.setSoTimeout(30000);
+                sInput = new BufferedInputStream(socket.getInputStream(), 65536);
+                sOutput = new BufferedOutputStream(socket.getOutputStream());
+            }
+            sOutput.write(("GET " + url + " HTTP/1.1\r\nHost: " + load.server.getHostString()
+                    + "\r\nConnection: " + (load.keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes("ISO-8859-1"));
+            sOutput.flush();
+            String statusLine = readLine();
+            if (statusLine == null) throw new EOFException("Connection closed by the server");
+            String[] status = statusLine.split(" ");
+            if (status.length < 2) throw new IOException("Bad status line: " + statusLine);
+            long length = -1;
+            boolean chunked = false;
+            boolean close = !load.keepAlive || statusLine.startsWith("HTTP/1.0");
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) length = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Connection")) close = value.equalsIgnoreCase("close");
+                else if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.toLowerCase().contains("chunked");
+            }
+            if (line == null) throw new EOFException("Connection closed by the server");
+            if (chunked) {
+                bodyLength = readChunks();
+            } else {
+                // Reads the body, until the server closes the connection if it has no length
+                bodyLength = readBody(length);
+                if (length < 0) close = true;
+            }
+            if (close) close();
+            return Integer.parseInt(status[1]);
+        }
+
+        /**
+         * Reads a body of the given length, or until the server closes the connection if it is -1.
+         * @return the number of bytes read.
+         */
+        private long readBody(long length) throws IOException {
+            long read = 0;
+            while (length < 0 || read < length) {
+                int count = sInput.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(buffer.length, length - read));
+                if (count < 0) {
+                    if (length >= 0) throw new EOFException("Answer cut by the server");
+                    break;
+                }
+                read += count;
+            }
+            return read;
+        }
+
+        /**
+         * Reads a body with the chunked transfer coding: each chunk after its size
+         * in hexadecimal, up to an empty chunk and the trailer lines.
+         * @return the number of bytes of the chunks.
+         */
+        private long readChunks() throws IOException {
+            long read = 0;
+            while (true) {
+                String line = readLine();
+                if (line == null) throw new EOFException("Answer cut by the server");
+                // Chunk extensions go after ';'
+                int semicolon = line.indexOf(';');
+                long size;
+                try {
+                    size = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size: " + line);
+                }
+                if (size == 0) break;
+                read += readBody(size);
+                // The line end after the chunk data
+                if (readLine() == null) throw new EOFException("Answer cut by the server");
+            }
+            String trailer;
+            do {
+                trailer = readLine();
+                if (trailer == null) throw new EOFException("Answer cut by the server");
+            } while (!trailer.isEmpty());
+            return read;
+        }
+
+        /**
+         * Reads a header line, ended by "\n" or "\r\n".
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = sInput.read()) >= 0 && c != '\n') {
+                if (c != '\r') line.append((char) c);
+            }
+            return c < 0 && line.length() == 0 ? null : line.toString();
+        }
+
+        private void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * A histogram of latencies in microseconds, with buckets of less than 1% of
+     * their value, so the percentiles need neither sorting nor keeping every value.
+     */
+    private static final class Histogram {
+        // Values below 128 get one bucket each, then 64 buckets per power of two
+        private static final int SUB_BUCKETS = 64;
+        private final long[] counts = new long[2 * SUB_BUCKETS + 40 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            record(value, 1);
+        }
+
+        void record(long value, long count) {
+            if (value < 0) value = 0;
+            counts[index(value)] += count;
+            total += count;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * Gives a copy of the histogram with the values that a petition sent every
+         * expectedInterval microseconds would have seen while each slow answer arrived.
+         */
+        Histogram corrected(long expectedInterval) {
+            Histogram corrected = new Histogram();
+            corrected.add(this);
+            if (expectedInterval <= 0) return corrected;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) continue;
+                for (long missing = value(i) - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+                    corrected.record(missing, counts[i]);
+                }
+            }
+            return corrected;
+        }
+
+        long percentile(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(value(i), max);
+            }
+            return max;
+        }
+
+        void print(String name) {
+            System.out.printf("CLIENT: %-14s %8.2f %8.2f %8.2f %8.2f %8.2f%n", name, percentile(50) / 1e3,
+                    percentile(90) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3, max / 1e3);
+        }
+
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+            return Math.min(2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS,
+                    2 * SUB_BUCKETS + 40 * SUB_BUCKETS - 1);
+        }
+
+        /**
+         * Gives the highest value of a bucket.
+         */
+        private static long value(int index) {
+            if (index < 2 * SUB_BUCKETS) return index;
+            int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long first = (long) ((index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+            return first + (1L << shift) - 1;
+        }
+    }
+}
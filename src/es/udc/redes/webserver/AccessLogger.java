@@ -0,0 +1,215 @@
+package es.udc.redes.webserver;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes the access_log.txt and errors_log.txt files from a single
+ * writer thread. Request threads only put the complete record on a bounded
+ * lock-free queue, so records never get mixed and requests never wait for the disk.
+ * The writer keeps both files open and flushes them every LOG_BATCH_SIZE records
+ * or every LOG_FLUSH_INTERVAL milliseconds. When LOG_QUEUE_SIZE records are
+ * waiting, LOG_FULL_POLICY decides if new ones are dropped ("drop") or if the
+ * request thread waits for room ("block", default). The event loops of the
+ * NioWebServer never wait, they drop their records when the queue is full.
+ * If the writer stops, because a file cannot be written, the records that
+ * come after it are dropped too.
+ * The logger is replaced when the server directory or the LOG_* lines change
+ * on a reload; the old writer finishes its queue on its own, without holding
+ * the requests, which log on the new one from then on.
+ * @author Miguel Blanco Godón.
+ */
+public final class AccessLogger implements Runnable {
+    private static volatile AccessLogger instance;
+    private static boolean hookAdded;
+
+    private final String directory;
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    // Number of records on the queue, used to bound it
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final int capacity;
+    private final boolean dropWhenFull;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Set when the writer thread has ended, nothing takes records from the queue then
+    private volatile boolean ended;
+    // The configuration this logger was created with
+    private final ConfFile source;
+
+    private AccessLogger(ConfFile configFile) {
+        this.directory = configFile.getLocalServerDir();
+        this.capacity = configFile.getIntOption("LOG_QUEUE_SIZE", 8192);
+        this.dropWhenFull = configFile.getOption("LOG_FULL_POLICY", "block").equals("drop");
+        this.batchSize = configFile.getIntOption("LOG_BATCH_SIZE", 256);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configFile.getIntOption("LOG_FLUSH_INTERVAL", 200));
+        this.writer = new Thread(this, "webserver-logger");
+        this.writer.setDaemon(true);
+        this.source = configFile;
+    }
+
+    /**
+     * Gives the logger of the server.
+     * @return the AccessLogger in use, or null if configure() hasn't been called yet.
+     */
+    public static AccessLogger getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the logger the first time, and replaces it if the server directory
+     * or the LOG_* lines have changed. The old logger is flushed and stopped
+     * after the new one is in use, without holding any lock.
+     * @param configFile a ConfFile with the server directory and the logger parameters.
+     */
+    public static void configure(ConfFile configFile) {
+        AccessLogger old;
+        synchronized (AccessLogger.class) {
+            old = instance;
+            if (old != null && old.hasSettingsOf(configFile)) return;
+            AccessLogger logger = new AccessLogger(configFile);
+            logger.writer.start();
+            instance = logger;
+            if (!hookAdded) {
+                // The hook flushes whichever logger is in use when the server stops
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> instance.shutdown(), "webserver-logger-shutdown"));
+                hookAdded = true;
+            }
+        }
+        if (old != null) old.shutdown();
+    }
+
+    /**
+     * Puts a record on the queue of the writer.
+     * @param validRequest a boolean, true for access_log.txt, false for errors_log.txt.
+     * @param record a String with the complete record, line separators included.
+     */
+    public void log(boolean validRequest, String record) {
+        // A request that took this logger before a reload logs on the new one
+        AccessLogger current = instance;
+        if (!running && current != null && current != this) {
+            current.log(validRequest, record);
+            return;
+        }
+        if (ended) {
+            dropped.increment();
+            return;
+        }
+        int waiting;
+        while (true) {
+            waiting = size.get();
+            if (waiting < capacity) {
+                if (size.compareAndSet(waiting, waiting + 1)) break;
+            } else if (dropWhenFull || !running || NioWebServer.isEventLoop()) {
+                dropped.increment();
+                return;
+            } else {
+                // Waits for the writer to make room
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+            }
+        }
+        queue.add(new Record(validRequest, record));
+        // The writer may have ended while the record was put
+        if (ended) discard();
+        if (waiting + 1 == batchSize) LockSupport.unpark(writer);
+    }
+
+    // Counts the records nobody is going to write as dropped
+    private void discard() {
+        while (queue.poll() != null) {
+            size.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    private boolean hasSettingsOf(ConfFile configFile) {
+        for (String key : new String[] {"LOG_QUEUE_SIZE", "LOG_FULL_POLICY", "LOG_BATCH_SIZE", "LOG_FLUSH_INTERVAL"}) {
+            if (!Objects.equals(source.getOption(key, null), configFile.getOption(key, null))) return false;
+        }
+        return directory.equals(configFile.getLocalServerDir());
+    }
+
+    /**
+     * Gives the number of records dropped because the queue was full or the writer had ended.
+     * @return a long with the number of lost records.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the records of the queue until the logger is stopped.
+     */
+    @Override
+    public void run() {
+        try (OutputStream access = open("access_log.txt"); OutputStream errors = open("errors_log.txt")) {
+            while (running || !queue.isEmpty()) {
+                Record record;
+                int written = 0;
+                while ((record = queue.poll()) != null) {
+                    (record.valid ? access : errors).write(record.text.getBytes());
+                    size.decrementAndGet();
+                    if (++written % batchSize == 0) {
+                        access.flush();
+                        errors.flush();
+                    }
+                }
+                if (written > 0) {
+                    access.flush();
+                    errors.flush();
+                }
+                if (running) LockSupport.parkNanos(flushIntervalNanos);
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: CANNOT WRITE LOG FILE");
+            System.err.println("Error: " + e.getMessage());
+            running = false;
+        } finally {
+            // From now on the records are dropped instead of waiting on the queue
+            ended = true;
+            discard();
+        }
+    }
+
+    /**
+     * Stops the writer after writing the records already on the queue.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private OutputStream open(String name) throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(directory + File.separator + name, true), 65536);
+    }
+
+    /**
+     * A log record and the file it goes to.
+     */
+    private static final class Record {
+        private final boolean valid;
+        private final String text;
+
+        Record(boolean valid, String text) {
+            this.valid = valid;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class decides, when a connection is accepted, if the server takes it.
+ * At most MAX_CONNECTIONS connections are open at once; the ones above the
+ * limit are answered at once with a "503 Service Unavailable" and a Retry-After
+ * line and closed, so an overloaded server stays fast for the clients it has
+ * instead of getting slower for everyone.
+ * With "ADMISSION: aimd" the limit adapts to the latency the server observes
+ * (the time static files and listings take to be answered, and on the blocking
+ * engine the time connections wait for a worker): it grows by one every limit
+ * good samples while it is being used, and it is cut by 10% (at most once every
+ * ADMISSION_LATENCY_MS milliseconds) when a sample takes longer than
+ * ADMISSION_LATENCY_MS, staying between ADMISSION_MIN_LIMIT and MAX_CONNECTIONS.
+ * @author Miguel Blanco Godón.
+ */
+public final class AdmissionControl {
+    private static final AdmissionControl instance = new AdmissionControl();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int maxConnections = 1024;
+    private volatile boolean adaptive;
+    private volatile long targetNanos = 100_000_000L;
+    private volatile int minLimit = 16;
+    // The adaptive limit, changed holding the lock of the instance
+    private double limit = 1024;
+    private volatile int currentLimit = 1024;
+    private long lastDecrease;
+
+    private AdmissionControl() {
+
+    }
+
+    /**
+     * Gives the admission control shared by every connection.
+     * @return the AdmissionControl of the server.
+     */
+    public static AdmissionControl getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits from the configuration file. The adaptive limit starts again from MAX_CONNECTIONS.
+     * @param configFile a ConfFile with the MAX_CONNECTIONS, ADMISSION, ADMISSION_LATENCY_MS and ADMISSION_MIN_LIMIT lines.
+     */
+    public static void configure(ConfFile configFile) {
+        int max = configFile.getIntOption("MAX_CONNECTIONS", 1024);
+        instance.adaptive = configFile.getOption("ADMISSION", "fixed").equals("aimd");
+        instance.targetNanos = configFile.getIntOption("ADMISSION_LATENCY_MS", 100) * 1_000_000L;
+        instance.minLimit = Math.min(configFile.getIntOption("ADMISSION_MIN_LIMIT", 16), max);
+        synchronized (instance) {
+            instance.maxConnections = max;
+            instance.limit = max;
+            instance.currentLimit = max;
+        }
+    }
+
+    /**
+     * Takes a place for a new connection, if the server is under its limit.
+     * Every place taken must be given back with release().
+     * @return true if the connection can be served, false if it must be rejected.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= currentLimit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Gives back the place of a closed connection.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Tells the adaptive limit how long something took. It is ignored with "ADMISSION: fixed".
+     * @param nanos a long with the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (!adaptive) return;
+        synchronized (this) {
+            if (nanos > targetNanos) {
+                long now = System.nanoTime();
+                if (now - lastDecrease < targetNanos) return;
+                lastDecrease = now;
+                limit = Math.max(minLimit, limit * 0.9);
+            } else if (inFlight.get() * 2 >= limit) {
+                // Only grows while at least half of it is in use
+                limit = Math.min(maxConnections, limit + 1 / limit);
+            }
+            currentLimit = (int) limit;
+        }
+    }
+
+    /**
+     * Answers a connection that wasn't admitted with a 503 and closes it. The
+     * answer is written once, without waiting for the petition.
+     * @param channel the SocketChannel of the rejected connection, in blocking mode.
+     */
+    public static void reject(SocketChannel channel) {
+        String separator = System.lineSeparator();
+        String answer = "HTTP/1.0 503 Service Unavailable" + separator
+                + new String(HttpDates.dateLine())
+                + "Retry-After: 1" + separator
+                + "Connection: close" + separator
+                + "Content-Length: 0" + separator + separator;
+        try (SocketChannel rejectedChannel = channel) {
+            rejectedChannel.write(ByteBuffer.wrap(answer.getBytes()));
+            rejectedChannel.shutdownOutput();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * Gives the number of connections open now.
+     * @return an int with the connections admitted and not closed yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gives the number of connections the server takes now.
+     * @return an int with the limit, MAX_CONNECTIONS unless it is adaptive.
+     */
+    public int getLimit() {
+        return currentLimit;
+    }
+
+    /**
+     * Gives the number of connections rejected because the server was full.
+     * @return a long with the number of rejections.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,110 @@
+package es.udc.redes.webserver;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents one range of a "Range: bytes=..." petition line,
+ * already resolved against the size of the resource.
+ * @author Miguel Blanco Godón.
+ */
+public final class ByteRange {
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the value of a Range line. Ranges that start after the end of the
+     * resource are left out. The line is ignored (and the whole resource is sent)
+     * if it has a syntax error, a unit other than bytes, more than maxRanges ranges,
+     * or ranges that add up to more than the resource itself.
+     * @param value a String with the value of the Range line, like "bytes=0-499,-100".
+     * @param length a long with the size of the resource.
+     * @param maxRanges an int with the maximum number of ranges accepted.
+     * @return a List with the ranges to send, empty if none of them can be satisfied,
+     * or null if the line must be ignored.
+     */
+    public static List<ByteRange> parse(String value, long length, int maxRanges) {
+        int equals = value.indexOf('=');
+        if (equals < 0 || !value.substring(0, equals).trim().equalsIgnoreCase("bytes")) return null;
+        List<ByteRange> ranges = new ArrayList<>();
+        long total = 0;
+        int count = 0;
+        for (String spec : value.substring(equals + 1).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) continue;
+            if (++count > maxRanges) return null;
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix range, the last bytes of the resource
+                    long suffix = parseNumber(spec.substring(1));
+                    if (suffix == 0 || length == 0) continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = parseNumber(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : parseNumber(spec.substring(dash + 1));
+                    if (last < first) return null;
+                    if (first >= length) continue;
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            total += last - first + 1;
+            if (total > length) return null;
+            ranges.add(new ByteRange(first, last));
+        }
+        if (count == 0) return null;
+        return ranges;
+    }
+
+    private static long parseNumber(String number) {
+        number = number.trim();
+        if (number.isEmpty()) throw new NumberFormatException("Empty range position");
+        for (int i = 0; i < number.length(); i++) {
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') throw new NumberFormatException(number);
+        }
+        return Long.parseLong(number);
+    }
+
+    /**
+     * Gives the position of the first byte of the range.
+     * @return a long with the offset on the resource.
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * Gives the position of the last byte of the range, included.
+     * @return a long with the offset on the resource.
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * Gives the number of bytes of the range.
+     * @return a long with the length.
+     */
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Gives the value of the Content-Range line that describes the range.
+     * @param length a long with the size of the whole resource.
+     * @return a String like "bytes 0-499/1234".
+     */
+    public String contentRange(long length) {
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+}
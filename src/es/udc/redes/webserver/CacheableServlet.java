@@ -0,0 +1,21 @@
+package es.udc.redes.webserver;
+
+/**
+ * Marks a MiniServlet whose page depends only on its parameters, so the same
+ * petition can be answered with the page it gave before. ServletCache keeps
+ * those pages, by servlet and parameters, for their time to live; servlets
+ * that read the time, a database or anything else that changes must not
+ * implement it.
+ * @author Miguel Blanco Godón.
+ */
+public interface CacheableServlet {
+
+	/**
+	 * Gives how long a page of the servlet can be sent again.
+	 * @return a long with the time in milliseconds, or 0 to use SERVLET_CACHE_TTL.
+	 */
+	public default long getTimeToLive() {
+		return 0;
+	}
+
+}
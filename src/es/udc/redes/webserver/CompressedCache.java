@@ -0,0 +1,288 @@
+package es.udc.redes.webserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class negotiates the Content-Encoding of the answers (gzip or deflate,
+ * from the Accept-Encoding line of the petition) and keeps the compressed
+ * variants of the static resources, so each version of a file is compressed
+ * only once and not on every petition.
+ * Only textual resources between GZIP_MIN_SIZE and TRANSFER_THRESHOLD bytes are
+ * compressed; bigger files are streamed from disk as they are. The variants are
+ * indexed by resource and encoding, checked against the modification time and
+ * size of the resource, and the least recently used ones are evicted when the
+ * total size goes over GZIP_CACHE_BYTES. Dynamic answers are compressed on
+ * every petition if GZIP_DYNAMIC is true. "GZIP: false" disables compression.
+ * @author Miguel Blanco Godón.
+ */
+public final class CompressedCache {
+    private static final CompressedCache instance = new CompressedCache();
+
+    // Variants in access order, the first one is the least recently used
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long totalBytes;
+    private volatile boolean enabled = true;
+    private volatile boolean dynamic = true;
+    private volatile int minSize = 256;
+    private volatile long maxSize = 65536;
+    private volatile long maxBytes = 16L * 1024 * 1024;
+
+    private CompressedCache() {
+
+    }
+
+    /**
+     * Gives the cache shared by every connection.
+     * @return the CompressedCache of the server.
+     */
+    public static CompressedCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the compression options from the configuration file.
+     * @param configFile a ConfFile with the GZIP, GZIP_DYNAMIC, GZIP_MIN_SIZE, GZIP_CACHE_BYTES and TRANSFER_THRESHOLD lines.
+     */
+    public static void configure(ConfFile configFile) {
+        instance.enabled = !configFile.getOption("GZIP", "true").equals("false");
+        instance.dynamic = !configFile.getOption("GZIP_DYNAMIC", "true").equals("false");
+        instance.minSize = configFile.getIntOption("GZIP_MIN_SIZE", 256);
+        instance.maxSize = configFile.getTransferThreshold();
+        instance.maxBytes = configFile.getIntOption("GZIP_CACHE_BYTES", 16 * 1024 * 1024);
+        synchronized (instance) {
+            instance.evict();
+        }
+    }
+
+    /**
+     * Chooses the content coding of the answer from the Accept-Encoding line,
+     * following its q-values. gzip is preferred to deflate when both are equally accepted.
+     * @param acceptEncoding a String with the value of the Accept-Encoding line, or null.
+     * @return a String with "gzip" or "deflate", or null if the answer must not be compressed.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || !instance.enabled) return null;
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) gzip = quality;
+            else if (name.equals("deflate")) deflate = quality;
+            else if (name.equals("*")) any = quality;
+        }
+        // Codings that aren't named take the q-value of "*"
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip <= 0 && deflate <= 0) return null;
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    /**
+     * Tells if a resource would be compressed, so its answers must be sent with "Vary: Accept-Encoding".
+     * @param contentType a String with the MIME type of the resource.
+     * @param length a long with the size of the resource.
+     * @return true if it is a textual resource with a size that is worth compressing.
+     */
+    public boolean isCompressible(String contentType, long length) {
+        return enabled && length >= minSize && length <= maxSize && isTextual(contentType);
+    }
+
+    /**
+     * Gives the compressed variant of a static resource, compressing it only the
+     * first time it is requested on each version.
+     * @param key a String that identifies the resource, like its path.
+     * @param lastModified a long with the modification time of the resource.
+     * @param contentType a String with the MIME type of the resource.
+     * @param etag a String with the entity tag of the resource.
+     * @param content a ByteBuffer with the content of the resource. It isn't modified.
+     * @param encoding a String with the content coding given by negotiate().
+     * @return the Variant, or null if the resource isn't compressible or it doesn't get smaller.
+     */
+    public Variant get(String key, long lastModified, String contentType, String etag, ByteBuffer content, String encoding) {
+        if (encoding == null || !isCompressible(contentType, content.remaining())) return null;
+        String variantKey = key + '\u0000' + encoding;
+        Variant variant;
+        synchronized (this) {
+            variant = variants.get(variantKey);
+        }
+        if (variant != null && variant.lastModified == lastModified && variant.originalLength == content.remaining()
+                && variant.sourceTag.equals(etag)) {
+            hits.increment();
+            return variant.encoding == null ? null : variant;
+        }
+        NioWebServer.mayBlock();
+        misses.increment();
+        byte[] original = new byte[content.remaining()];
+        content.duplicate().get(original);
+        byte[] data = compress(original, encoding);
+        // A variant without encoding remembers that the resource doesn't get smaller
+        variant = data.length < original.length
+                ? new Variant(data, encoding, lastModified, original.length, contentType, etag)
+                : new Variant(new byte[0], null, lastModified, original.length, null, etag);
+        synchronized (this) {
+            Variant old = variants.put(variantKey, variant);
+            if (old != null) totalBytes -= old.data.length;
+            totalBytes += variant.data.length;
+            evict();
+        }
+        return variant.encoding == null ? null : variant;
+    }
+
+    /**
+     * Compresses a dynamic answer, if GZIP_DYNAMIC is true and it is big enough.
+     * @param content a byte[] with the answer body.
+     * @param encoding a String with the content coding given by negotiate(), or null.
+     * @return a byte[] with the compressed body, or null if the answer must be sent as it is.
+     */
+    public byte[] compressDynamic(byte[] content, String encoding) {
+        if (encoding == null || !dynamic || content.length < minSize) return null;
+        NioWebServer.mayBlock();
+        byte[] data = compress(content, encoding);
+        return data.length < content.length ? data : null;
+    }
+
+    /**
+     * Compresses data with a content coding.
+     * @param data a byte[] with the data.
+     * @param encoding a String, "gzip" or "deflate" (zlib format, as HTTP defines it).
+     * @return a byte[] with the compressed data.
+     */
+    public static byte[] compress(byte[] data, String encoding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (OutputStream output = encoding.equals("gzip")
+                ? new GZIPOutputStream(compressed, 8192) : new DeflaterOutputStream(compressed)) {
+            output.write(data);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Gives the number of petitions answered with an already compressed variant.
+     * @return a long with the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gives the number of variants compressed.
+     * @return a long with the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CompressedCache: hits=" + getHits() + " misses=" + getMisses() + " bytes=" + totalBytes + "/" + maxBytes;
+    }
+
+    private static boolean isTextual(String contentType) {
+        if (contentType == null) return false;
+        return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("/xml")
+                || contentType.endsWith("/json") || contentType.endsWith("/javascript");
+    }
+
+    /**
+     * Removes the least recently used variants until the cache fits in its budget.
+     * Must be called holding the lock of the cache.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().data.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * A compressed resource and the header lines that describe it.
+     */
+    public static final class Variant {
+        private final byte[] data;
+        private final String encoding;
+        private final long lastModified;
+        private final long originalLength;
+        private final String sourceTag;
+        private final String etag;
+        private final byte[] headerLines;
+
+        Variant(byte[] data, String encoding, long lastModified, long originalLength, String contentType, String sourceTag) {
+            this.data = data;
+            this.encoding = encoding;
+            this.lastModified = lastModified;
+            this.originalLength = originalLength;
+            this.sourceTag = sourceTag;
+            this.etag = encoding != null ? EntityTag.variant(sourceTag, encoding) : sourceTag;
+            if (encoding != null) {
+                String separator = System.lineSeparator();
+                headerLines = ("Content-Length: " + data.length + separator
+                        + "Content-Encoding: " + encoding + separator
+                        + "Content-Type: " + contentType + separator
+                        + "Last-Modified: " + HttpDates.format(lastModified) + separator
+                        + "ETag: " + etag + separator
+                        + "Vary: Accept-Encoding" + separator).getBytes();
+            } else {
+                headerLines = null;
+            }
+        }
+
+        /**
+         * Gives the compressed content.
+         * @return a byte[] with the content. It must not be modified.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Gives the content coding of the variant.
+         * @return a String, "gzip" or "deflate".
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * Gives the entity tag of the variant, the one of the resource with the content coding added.
+         * @return a String with the quoted tag.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Gives the Content-Length, Content-Encoding, Content-Type, Last-Modified, ETag and Vary header lines.
+         * @return a byte[] with the lines. It must not be modified.
+         */
+        byte[] getHeaderLines() {
+            return headerLines;
+        }
+    }
+}
@@ -1,30 +1,135 @@
 package es.udc.redes.webserver;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.io.IOException;
-import java.util.Date;
 
 /**
  * This class contains methods to server Configuration Files management. 
+ * A ConfFile is an immutable snapshot of server_properties.txt: every line is
+ * a "KEY: value" pair (PORT, DIRECTORY_INDEX, DIRECTORY and ALLOW, followed by
+ * the optional tuning parameters). ServerConfig swaps the snapshot in use when
+ * the file changes.
  * @author Miguel Blanco Godón.
  */
 public final class ConfFile {
-    private int port;
-    private String directoryIndex;
-    private String localServerDirectory;
-    private boolean allowClause;
+    /** The name of the configuration file, read from the working directory. */
+    public static final String FILE_NAME = "server_properties.txt";
+    // Parameters that must be positive numbers, booleans or one of some words
+    private static final Set<String> NUMERIC_KEYS = new HashSet<>(Arrays.asList("POOL_SIZE", "QUEUE_SIZE", "NIO_LOOPS",
+            "KEEP_ALIVE_TIMEOUT", "KEEP_ALIVE_MAX", "KEEP_ALIVE_BUSY_TIMEOUT", "HEADER_TIMEOUT", "BODY_TIMEOUT",
+            "LOG_QUEUE_SIZE", "LOG_BATCH_SIZE", "LOG_FLUSH_INTERVAL", "CACHE_MAX_BYTES", "CACHE_MAX_ENTRY_BYTES",
+            "CACHE_REVALIDATE_MS", "HEADER_CACHE_ENTRIES",
+            "LISTING_CACHE_ENTRIES", "LISTING_MAX_BYTES", "TRANSFER_THRESHOLD", "GZIP_MIN_SIZE", "GZIP_CACHE_BYTES",
+            "RANGE_MAX_COUNT", "HEADER_MAX_SIZE", "HEADER_MAX_COUNT", "QUERY_MAX_PARAMETERS", "QUERY_MAX_LENGTH",
+            "SERVLET_CACHE_ENTRIES", "SERVLET_CACHE_TTL", "COALESCE_WAIT_MS", "SERVLET_THREADS", "SERVLET_QUEUE_SIZE",
+            "SERVLET_MAX_CONCURRENCY", "SERVLET_TIMEOUT", "MAX_CONNECTIONS", "ACCEPT_BACKLOG", "ADMISSION_LATENCY_MS",
+            "ADMISSION_MIN_LIMIT"));
+    private static final Set<String> BOOLEAN_KEYS = new HashSet<>(Arrays.asList("ALLOW", "GZIP", "GZIP_DYNAMIC",
+            "LISTING_WATCH", "SERVLET_SCAN", "SERVLETS_ONLY_REGISTERED", "ARCHIVE_BUILD", "SERVLET_CACHE"));
+    private static final Map<String, List<String>> CHOICE_KEYS = new HashMap<>();
+    static {
+        CHOICE_KEYS.put("ENGINE", Arrays.asList("blocking", "nio"));
+        CHOICE_KEYS.put("EXECUTION_MODE", Arrays.asList("pool", "virtual"));
+        CHOICE_KEYS.put("LOG_FULL_POLICY", Arrays.asList("block", "drop"));
+        CHOICE_KEYS.put("ADMISSION", Arrays.asList("fixed", "aimd"));
+    }
+    
+    private final int port;
+    private final String directoryIndex;
+    private final String localServerDirectory;
+    private final boolean allowClause;
+    private final Map<String, String> options;
+    // The numeric values, parsed once
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final List<String> errors = new ArrayList<>();
     
     /**
      *  Creates a ConfFile object, trying to read a file called server_properties.txt. If it doesn't exists it is initialized to default values.
      */
     public ConfFile() {
-        this.port = 5000;
-        this.directoryIndex = "index.html";
-        this.localServerDirectory = System.getProperty("user.dir");
-        this.allowClause = false;
-        setParameters();
+        this(readConfigFile(getDefaultPath()));
+    }
+    
+    /**
+     * Creates a ConfFile from the lines of a configuration file.
+     * @param lines a List with the lines of the file, or null to use the default values.
+     */
+    private ConfFile(List<String> lines) {
+        Map<String, String> values = new HashMap<>();
+        if (lines != null) {
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int separator = line.indexOf(':');
+                if (separator <= 0) {
+                    errors.add("Line " + (i + 1) + " isn't a \"KEY: value\" pair: " + line);
+                    continue;
+                }
+                values.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+        this.options = Collections.unmodifiableMap(values);
+        for (Map.Entry<String, String> option : values.entrySet()) {
+            try {
+                numbers.put(option.getKey(), Integer.parseInt(option.getValue()));
+            } catch (NumberFormatException e) {
+                // Not a number, it is only given as a String
+            }
+        }
+        Integer portNumber = numbers.get("PORT");
+        this.port = portNumber != null ? portNumber : 5000;
+        this.directoryIndex = getOption("DIRECTORY_INDEX", "index.html");
+        this.localServerDirectory = getOption("DIRECTORY", System.getProperty("user.dir"));
+        this.allowClause = getOption("ALLOW", "false").equals("true");
+    }
+    
+    /**
+     * Reads a configuration file.
+     * @param file the Path of the file.
+     * @return a new ConfFile with the content of the file. It must be checked with validate().
+     * @throws IOException if the file cannot be read.
+     */
+    public static ConfFile read(Path file) throws IOException {
+        return new ConfFile(Files.readAllLines(file));
+    }
+    
+    /**
+     * Gives the path of the configuration file.
+     * @return the Path of server_properties.txt on the working directory.
+     */
+    public static Path getDefaultPath() {
+        return Paths.get(System.getProperty("user.dir"), FILE_NAME);
+    }
+    
+    /**
+     * Checks the values of the configuration: the port, the server directory,
+     * the default file name and the type of every known parameter.
+     * @return a List with a message for every error found, empty if the configuration can be used.
+     */
+    public List<String> validate() {
+        List<String> problems = new ArrayList<>(errors);
+        if (!options.containsKey("PORT") || port <= 0 || port > 65535) problems.add("PORT must be a number from 1 to 65535");
+        if (!new File(localServerDirectory).isDirectory()) problems.add("DIRECTORY " + localServerDirectory + " isn't a directory");
+        if (directoryIndex.isEmpty() || directoryIndex.contains("/")) problems.add("DIRECTORY_INDEX must be a file name");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String key = option.getKey();
+            String value = option.getValue();
+            Integer number = numbers.get(key);
+            if (NUMERIC_KEYS.contains(key) && (number == null || number <= 0)) problems.add(key + " must be a positive number");
+            if (BOOLEAN_KEYS.contains(key) && !value.equals("true") && !value.equals("false")) problems.add(key + " must be true or false");
+            if (CHOICE_KEYS.containsKey(key) && !CHOICE_KEYS.get(key).contains(value)) problems.add(key + " must be one of " + CHOICE_KEYS.get(key));
+        }
+        return problems;
     }
     
     /**
@@ -60,90 +165,148 @@ public final class ConfFile {
     }
     
     /**
-     * This method changes the values of the class. It's called by the constructor.
+     * Gives the way accepted connections are executed.
+     * @return "pool" (bounded pool of platform threads, default) or "virtual" (one virtual thread per connection), as written on the EXECUTION_MODE line.
+     */
+    public String getExecutionMode() {
+        return getOption("EXECUTION_MODE", "pool");
+    }
+    
+    /**
+     * Gives the number of worker threads of the connection pool.
+     * @return the POOL_SIZE value or 2 * available processors (default value).
+     */
+    public int getPoolSize() {
+        return getIntOption("POOL_SIZE", 2 * Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Gives the number of accepted connections that can wait for a free worker.
+     * @return the QUEUE_SIZE value or 1024 (default value).
      */
-    private void setParameters() {
-        List<String> parameters = readConfigFile();
-        if (parameters == null) return;
-        
-        this.port = (int) Integer.decode(parameters.get(0));
-        this.directoryIndex = parameters.get(1);
-        this.localServerDirectory = parameters.get(2);
-        switch(parameters.get(3)) {
-            case "true" : this.allowClause = true;break;
-            default : this.allowClause = false;break;
+    public int getQueueSize() {
+        return getIntOption("QUEUE_SIZE", 1024);
+    }
+    
+    /**
+     * Gives how long a persistent connection can wait for its next petition.
+     * @return the KEEP_ALIVE_TIMEOUT value in milliseconds or 5000 (default value).
+     */
+    public int getKeepAliveTimeout() {
+        return getIntOption("KEEP_ALIVE_TIMEOUT", 5000);
+    }
+    
+    /**
+     * Gives how many petitions can be answered on the same connection.
+     * @return the KEEP_ALIVE_MAX value or 100 (default value).
+     */
+    public int getKeepAliveMax() {
+        return getIntOption("KEEP_ALIVE_MAX", 100);
+    }
+    
+    /**
+     * Gives the size from which files are sent from disk with FileChannel.transferTo
+     * instead of being read into memory.
+     * @return the TRANSFER_THRESHOLD value in bytes or 65536 (default value).
+     */
+    public int getTransferThreshold() {
+        return getIntOption("TRANSFER_THRESHOLD", 65536);
+    }
+    
+    /**
+     * Gives the value of an optional line of server_properties.txt.
+     * @param key a String with the name of the parameter (without ':').
+     * @param defaultValue a String returned if the parameter isn't written.
+     * @return a String with the value of the parameter.
+     */
+    public String getOption(String key, String defaultValue) {
+        String value = this.options.get(key);
+        return value == null ? defaultValue : value;
+    }
+    
+    /**
+     * Gives every line of the configuration.
+     * @return an unmodifiable Map with the value of each parameter.
+     */
+    public Map<String, String> getOptions() {
+        return this.options;
+    }
+    
+    /**
+     * Gives the value of an optional numeric line of server_properties.txt.
+     * @param key a String with the name of the parameter (without ':').
+     * @param defaultValue an int returned if the parameter isn't written or isn't a positive number.
+     * @return an int with the value of the parameter.
+     */
+    public int getIntOption(String key, int defaultValue) {
+        Integer value = this.numbers.get(key);
+        if (value == null) {
+            if (this.options.containsKey(key)) System.err.println("Error: Invalid " + key + " value, using " + defaultValue);
+            return defaultValue;
         }
+        return value > 0 ? value : defaultValue;
     }
     
     /**
      * Reads the file "server_properties.txt". 
-     * @return a List<String> containing the information retrieved or null on error.
-     */
-    private List<String> readConfigFile() {
-        File configFile = new File(System.getProperty("user.dir") + File.separator + "server_properties.txt");
-        
-        List<String> lines = null;
-        List<String> options;
-        
+     * @param file the Path of the file.
+     * @return a List<String> containing the lines of the file or null on error.
+     */
+    private static List<String> readConfigFile(Path file) {
         try {
-            lines = Files.readAllLines(configFile.toPath());
+            return Files.readAllLines(file);
         } catch (IOException ioex) {
             System.out.println("Error: Cannot read server Config File. Make sure you have a 'server_properties.txt' file in your working directory");
             System.err.println("Error: " + ioex.getMessage());
-        }
-        
-        if (lines == null) return null;
-        
-        options = new ArrayList();
-        
-        try {
-            for (int i = 0; i < 4; i++) options.add(lines.get(i).split(" ")[1]);
-        } catch (Exception e) {
-            System.out.println("Error: Cannot create List parameter. Revise server_properties.txt content. Shoud be: ");
-            System.out.println("PORT: <port_number> \nDIRECTORY_INDEX: <default_file_name>\nDIRECTORY: <directory_of_server_resources>\nALLOW: <true/false>");
-            System.err.println("Error: " + e.getMessage());
             return null;
         }
-        return options;
     }
     
     /**
      * Creates a dynamic html by reading the specified directory. It appends a 
-     * link to the resource.
+     * link to the resource. The server sends the listings cached by DirectoryListing.
      * @param path a String containing the complete path to the directory.
-     * @return a String containing the dynamic html.
+     * @return a String containing the dynamic html, or null if the directory cannot be read.
      */
     static public String buildHTMLindexFile(String path) {
-        File dir = new File(path);
-        StringBuilder file = new StringBuilder();
-        String[] strArr;
-            file.append("<!DOCTYPE html>\n<html>\n<body>\n\n<h1>Requested directory files</h1>\n\n<p>");
-            // for loop to read directory
-            for (File fileOfDir : dir.listFiles()){ 
-                strArr = fileOfDir.toString().split("/");
-                file.append("<a href=");
-                file.append(strArr[strArr.length - 1]);
-                file.append("> ");
-                file.append(fileOfDir.getName());
-                file.append("</a>\n");
-            }
-            file.append("</p>\n\n</body>\n</html>\n");
-        return file.toString();
+        return DirectoryListing.render(path);
     }
     
     /**
      * Creates a dynamic HTTP answer. It always returns 200 HTTP code.
      * @param resourceSize a long with the size of the answer.
+     * @param version a String with the protocol version of the answer, "HTTP/1.0" or "HTTP/1.1".
+     * @param keepAlive a boolean, true if the connection stays open after the answer.
+     * @return a String containing the header of the HTTP answer.
+     */
+    public static String buildDynamicAnswer(long resourceSize, String version, boolean keepAlive) {
+        return buildDynamicAnswer(resourceSize, version, keepAlive, null);
+    }
+    
+    /**
+     * Creates a dynamic HTTP answer with a compressed body. It always returns 200 HTTP code.
+     * @param resourceSize a long with the size of the compressed answer.
+     * @param version a String with the protocol version of the answer, "HTTP/1.0" or "HTTP/1.1".
+     * @param keepAlive a boolean, true if the connection stays open after the answer.
+     * @param encoding a String with the content coding of the body, or null if it isn't compressed.
      * @return a String containing the header of the HTTP answer.
      */
-    public static String buildDynamicAnswer(long resourceSize) {
+    public static String buildDynamicAnswer(long resourceSize, String version, boolean keepAlive, String encoding) {
         StringBuilder answer = new StringBuilder();
-        answer.append("HTTP/1.0 200 OK\nDate: ");
-        answer.append(String.format("%tc", new Date()));
+        answer.append(version);
+        answer.append(" 200 OK\nDate: ");
+        answer.append(HttpDates.now());
         answer.append("\nServer: ");
-        answer.append(System.getProperty("os.name"));
-        answer.append("\nContent-Length: ");
+        answer.append(HttpUtils.SERVER_NAME);
+        answer.append("\n");
+        answer.append(HttpUtils.connectionLine(keepAlive));
+        answer.append("Content-Length: ");
         answer.append(resourceSize);
+        if (encoding != null) {
+            answer.append("\nContent-Encoding: ");
+            answer.append(encoding);
+            answer.append("\nVary: Accept-Encoding");
+        }
         answer.append("\nContent-Type: text/html\n\n");
         return answer.toString();
     }
@@ -0,0 +1,110 @@
+package es.udc.redes.webserver;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the deadline of one connection on the HashedTimerWheel.
+ * The deadline depends on what the connection is waiting for: the head of a
+ * petition has HEADER_TIMEOUT milliseconds to arrive, counted from its first
+ * byte (or from the accept, for the first petition of the connection), its
+ * body BODY_TIMEOUT milliseconds, and a persistent connection waits for the
+ * next petition KEEP_ALIVE_TIMEOUT milliseconds. The deadline is set once
+ * for each of these phases, not on every read, so a client sending a byte now
+ * and then cannot hold a connection. There isn't a deadline while an answer is
+ * being built; while it is being sent, the socket has KEEP_ALIVE_TIMEOUT
+ * milliseconds to take more of it.
+ * When the deadline passes, the connection is closed by the task it gives.
+ * @author Miguel Blanco Godón.
+ */
+public final class ConnectionDeadline {
+    private static final int NONE = 0;
+    private static final int IDLE = 1;
+    private static final int HEAD = 2;
+    private static final int BODY = 3;
+    private static final int WRITE = 4;
+    private static final LongAdder expired = new LongAdder();
+
+    private final Runnable onExpired;
+    // The phase being timed and its Timeout, changed holding the lock of the instance
+    private int phase = NONE;
+    private HashedTimerWheel.Timeout timeout;
+    // Tells the Timeouts of earlier phases, which may fire after being replaced, from the current one
+    private long generation;
+    // When the current Timeout fires, in System.nanoTime() terms
+    private long due;
+
+    /**
+     * This is the ConnectionDeadline constructor.
+     * @param onExpired the Runnable that closes the connection. It runs on the timer thread and must be short.
+     */
+    public ConnectionDeadline(Runnable onExpired) {
+        this.onExpired = onExpired;
+    }
+
+    /**
+     * Sets the deadline for what the connection is waiting to read. It is kept if the phase hasn't changed.
+     * @param parser the HttpRequestParser of the connection.
+     * @param first a boolean, true if no petition has been answered on the connection yet.
+     * @param configFile a ConfFile with the HEADER_TIMEOUT, BODY_TIMEOUT and KEEP_ALIVE_TIMEOUT lines.
+     */
+    public synchronized void watch(HttpRequestParser parser, boolean first, ConfFile configFile) {
+        if (parser.isReadingBody()) arm(BODY, configFile.getIntOption("BODY_TIMEOUT", 30000));
+        else if (parser.isStarted() || first) arm(HEAD, configFile.getIntOption("HEADER_TIMEOUT", 10000));
+        else arm(IDLE, configFile.getKeepAliveTimeout());
+    }
+
+    /**
+     * Sets the deadline for the socket to take more of the answer. It starts again on every call.
+     * @param configFile a ConfFile with the KEEP_ALIVE_TIMEOUT line.
+     */
+    public synchronized void watchWrite(ConfFile configFile) {
+        cancel();
+        arm(WRITE, configFile.getKeepAliveTimeout());
+    }
+
+    /**
+     * Brings forward the deadline of a connection waiting for its next petition.
+     * Nothing changes on other phases, or if the deadline is already sooner.
+     * @param millis a long with the milliseconds left to the connection.
+     */
+    public synchronized void shorten(long millis) {
+        if (phase != IDLE || System.nanoTime() + millis * 1_000_000L >= due) return;
+        cancel();
+        arm(IDLE, millis);
+    }
+
+    /**
+     * Removes the deadline, while an answer is being built.
+     */
+    public synchronized void cancel() {
+        phase = NONE;
+        if (timeout != null) timeout.cancel();
+        timeout = null;
+    }
+
+    /**
+     * Gives the number of connections closed because a deadline passed.
+     * @return a long with the number of expired deadlines.
+     */
+    public static long getExpired() {
+        return expired.sum();
+    }
+
+    private void arm(int next, long millis) {
+        if (phase == next) return;
+        cancel();
+        phase = next;
+        long armed = ++generation;
+        due = System.nanoTime() + millis * 1_000_000L;
+        timeout = HashedTimerWheel.getInstance().schedule(() -> expire(armed), millis);
+    }
+
+    private void expire(long armed) {
+        synchronized (this) {
+            if (armed != generation || phase == NONE) return;
+            phase = NONE;
+            timeout = null;
+        }
+        expired.increment();
+        onExpired.run();
+    }
+}
@@ -0,0 +1,107 @@
+package es.udc.redes.webserver;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates the executor where the WebServerThread tasks are run.
+ * The execution mode is selected with the EXECUTION_MODE line of server_properties.txt:
+ * "pool" gives a bounded pool of POOL_SIZE platform threads with a queue of
+ * QUEUE_SIZE waiting connections, "virtual" gives one virtual thread per connection.
+ * On a pool, a keep-alive connection waiting for its next petition holds a
+ * worker, so while connections are waiting for one the idle ones are given
+ * KEEP_ALIVE_BUSY_TIMEOUT milliseconds instead of KEEP_ALIVE_TIMEOUT.
+ * @author Miguel Blanco Godón.
+ */
+public final class ConnectionExecutor {
+    // The queue of the pool, null with virtual threads
+    private static volatile BlockingQueue<Runnable> waiting;
+
+    // The constructor is declared private to prevent instantiation.
+    private ConnectionExecutor() {
+
+    }
+
+    /**
+     * Creates the executor described by the configuration file.
+     * When the pool is full and the queue too, execute() throws a RejectedExecutionException.
+     * @param configFile a ConfFile with the execution mode and the pool sizes.
+     * @return an ExecutorService ready to run connections.
+     */
+    public static ExecutorService create(ConfFile configFile) {
+        if (configFile.getExecutionMode().equals("virtual")) {
+            ExecutorService virtual = virtualThreadExecutor();
+            if (virtual != null) return virtual;
+            System.out.println("Warning: Virtual threads aren't available on this JVM, using a bounded pool");
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(configFile.getPoolSize(), configFile.getPoolSize(),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(configFile.getQueueSize()),
+                new WorkerFactory(), new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        waiting = pool.getQueue();
+        return pool;
+    }
+
+    /**
+     * Changes the number of workers of a pool created by create() to the POOL_SIZE
+     * of a new configuration. The running connections aren't interrupted; spare
+     * workers stop when they finish their current task. Virtual thread executors aren't changed.
+     * @param executor the ExecutorService given by create().
+     * @param configFile a ConfFile with the new POOL_SIZE line.
+     */
+    public static void resize(ExecutorService executor, ConfFile configFile) {
+        if (!(executor instanceof ThreadPoolExecutor)) return;
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        int size = configFile.getPoolSize();
+        if (size == pool.getCorePoolSize()) return;
+        // The core size can never be bigger than the maximum size
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+        System.out.println("Connection pool resized to " + size + " workers");
+    }
+
+    /**
+     * Tells if there are connections waiting for a worker of the pool.
+     * @return true if the pool queue isn't empty, false with virtual threads.
+     */
+    public static boolean hasWaiting() {
+        BlockingQueue<Runnable> queue = waiting;
+        return queue != null && !queue.isEmpty();
+    }
+
+    /**
+     * Looks for Executors.newVirtualThreadPerTaskExecutor(), only present on JDK 21 or later.
+     * @return an ExecutorService with one virtual thread per task, or null if the JVM has no virtual threads.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Names the pool threads so they can be told apart on a thread dump.
+     */
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread worker = new Thread(task, "webserver-worker-" + count.incrementAndGet());
+            worker.setDaemon(false);
+            return worker;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps in memory the content of the static files served, so hot
+ * files don't have to be read from disk on every petition.
+ * The entries are indexed by normalized path and the least recently used ones
+ * are evicted when the total size goes over CACHE_MAX_BYTES. Files bigger than
+ * CACHE_MAX_ENTRY_BYTES are never cached. An entry is checked against the
+ * modification time and size of its file at most once every CACHE_REVALIDATE_MS
+ * milliseconds. Concurrent misses of the same file wait for the first one to
+ * read it, at most COALESCE_WAIT_MS milliseconds, instead of reading it again.
+ * On an event loop of the NioWebServer only hits are answered: misses and
+ * checks against the file are left to a dispatcher thread.
+ * @author Miguel Blanco Godón.
+ */
+public final class ContentCache {
+    private static final ContentCache instance = new ContentCache();
+
+    // Entries in access order, the first one is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final SingleFlight<String, byte[]> loads = new SingleFlight<>();
+    private long totalBytes;
+    private volatile long maxBytes = 64L * 1024 * 1024;
+    private volatile long maxEntryBytes = 1024 * 1024;
+    private volatile long revalidateMillis = 1000;
+    private volatile long waitMillis = 5000;
+
+    private ContentCache() {
+
+    }
+
+    /**
+     * Gives the cache shared by every connection.
+     * @return the ContentCache of the server.
+     */
+    public static ContentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the cache from the configuration file. If the new byte
+     * budget is smaller, the least recently used entries are evicted.
+     * @param configFile a ConfFile with the CACHE_MAX_BYTES, CACHE_MAX_ENTRY_BYTES, CACHE_REVALIDATE_MS and COALESCE_WAIT_MS lines.
+     */
+    public static void configure(ConfFile configFile) {
+        instance.maxBytes = configFile.getIntOption("CACHE_MAX_BYTES", 64 * 1024 * 1024);
+        instance.maxEntryBytes = configFile.getIntOption("CACHE_MAX_ENTRY_BYTES", 1024 * 1024);
+        instance.revalidateMillis = configFile.getIntOption("CACHE_REVALIDATE_MS", 1000);
+        instance.waitMillis = configFile.getIntOption("COALESCE_WAIT_MS", 5000);
+        synchronized (instance) {
+            instance.evict();
+        }
+    }
+
+    /**
+     * Gives the content of a file, from memory if it is cached and up to date.
+     * @param path a String that contains the path to the file.
+     * @return a byte[] with the file stored on it, or null if it cannot be read.
+     */
+    public byte[] get(String path) {
+        String key = Paths.get(path).normalize().toString();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (now - entry.checkedAt < revalidateMillis || matchesFile(key, entry, now)) {
+                hits.increment();
+                return entry.data;
+            }
+            remove(key, entry);
+        }
+        NioWebServer.mayBlock();
+        misses.increment();
+        return loads.get(key, () -> load(key, now), waitMillis);
+    }
+
+    /**
+     * Checks an entry against the modification time and size of its file. It
+     * may wait for the disk, so it is never done on an event loop.
+     */
+    private boolean matchesFile(String key, Entry entry, long now) {
+        NioWebServer.mayBlock();
+        BasicFileAttributes attributes = attributes(key);
+        if (attributes == null || attributes.lastModifiedTime().toMillis() != entry.lastModified
+                || attributes.size() != entry.data.length) return false;
+        entry.checkedAt = now;
+        return true;
+    }
+
+    /**
+     * Gives the content of a file whose attributes are already known, so it is
+     * not checked against the file system again when the cached content was read
+     * with the same modification time and size. Otherwise the file is checked, as
+     * the known attributes may be older than the content, and the content is
+     * only read again if the file doesn't match it.
+     * @param path a String that contains the path to the file.
+     * @param lastModified a long with the modification time of the file, in milliseconds.
+     * @param length a long with the size of the file.
+     * @return a byte[] with the file stored on it, or null if it cannot be read.
+     */
+    public byte[] get(String path, long lastModified, long length) {
+        String key = Paths.get(path).normalize().toString();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (entry.lastModified == lastModified && entry.data.length == length) {
+                hits.increment();
+                return entry.data;
+            }
+            // The attributes may be the stale ones, the file decides if the entry is still good
+            if (matchesFile(key, entry, now)) {
+                hits.increment();
+                return entry.data;
+            }
+            remove(key, entry);
+        }
+        NioWebServer.mayBlock();
+        misses.increment();
+        return loads.get(key, () -> load(key, now), waitMillis);
+    }
+
+    /**
+     * Gives the number of petitions answered from memory.
+     * @return a long with the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gives the number of petitions that had to read the file.
+     * @return a long with the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gives the number of entries removed to keep the cache under its byte budget.
+     * @return a long with the number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gives the bytes of file content kept in memory.
+     * @return a long with the total size of the cached files.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ContentCache: hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions()
+                + " bytes=" + getTotalBytes() + "/" + maxBytes;
+    }
+
+    /**
+     * Reads a file from disk and caches it if it is small enough.
+     */
+    private byte[] load(String key, long now) {
+        Path file = Paths.get(key);
+        if (!Files.isReadable(file) || Files.isDirectory(file)) return null;
+        BasicFileAttributes attributes = attributes(key);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+        // The file may have changed while it was read, in that case it isn't cached
+        if (attributes == null || attributes.size() != data.length || data.length > maxEntryBytes) return data;
+        Entry entry = new Entry(data, attributes.lastModifiedTime().toMillis(), now);
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) totalBytes -= old.data.length;
+            totalBytes += data.length;
+            evict();
+        }
+        return data;
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) totalBytes -= entry.data.length;
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits in its budget.
+     * Must be called holding the lock of the cache.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().data.length;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static BasicFileAttributes attributes(String path) {
+        try {
+            return Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A cached file and the file attributes it was read with.
+     */
+    private static final class Entry {
+        private final byte[] data;
+        private final long lastModified;
+        private volatile long checkedAt;
+
+        Entry(byte[] data, long lastModified, long checkedAt) {
+            this.data = data;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class generates the html index of the directories (when ALLOW is true)
+ * and keeps the ones already generated, so a directory isn't read again on
+ * every petition.
+ * The listings are indexed by directory. A WatchService thread forgets a listing
+ * as soon as a file is created or deleted on its directory; if the directory
+ * cannot be watched, the listing is checked against the modification time of the
+ * directory at most once every CACHE_REVALIDATE_MS milliseconds. The
+ * LISTING_CACHE_ENTRIES least recently used listings are kept.
+ * The listing is generated reading the directory entry by entry. If it grows
+ * over LISTING_MAX_BYTES it isn't cached: the rest of it is generated while it
+ * is sent, so huge directories are never whole in memory. The NioWebServer
+ * reads that rest on its dispatcher threads, away from the event loop.
+ * @author Miguel Blanco Godón.
+ */
+public final class DirectoryListing {
+    private static final byte[] HEAD = "<!DOCTYPE html>\n<html>\n<body>\n\n<h1>Requested directory files</h1>\n\n<p>"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TAIL = "</p>\n\n</body>\n</html>\n".getBytes(StandardCharsets.UTF_8);
+    // Size of the pieces of the streamed listings
+    private static final int PIECE_SIZE = 16384;
+    private static final DirectoryListing instance = new DirectoryListing();
+
+    // Listings in access order, the first one is the least recently used
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<WatchKey, String> watched = new HashMap<>();
+    private WatchService watcher;
+    private volatile int maxEntries = 256;
+    private volatile int maxBytes = 1024 * 1024;
+    private volatile long revalidateMillis = 1000;
+
+    private DirectoryListing() {
+
+    }
+
+    /**
+     * Gives the listing cache shared by every connection.
+     * @return the DirectoryListing of the server.
+     */
+    public static DirectoryListing getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the cache from the configuration file and starts the
+     * thread that watches the cached directories, if "LISTING_WATCH: false" isn't set.
+     * @param configFile a ConfFile with the LISTING_CACHE_ENTRIES, LISTING_MAX_BYTES, LISTING_WATCH and CACHE_REVALIDATE_MS lines.
+     */
+    public static void configure(ConfFile configFile) {
+        instance.maxEntries = configFile.getIntOption("LISTING_CACHE_ENTRIES", 256);
+        instance.maxBytes = configFile.getIntOption("LISTING_MAX_BYTES", 1024 * 1024);
+        instance.revalidateMillis = configFile.getIntOption("CACHE_REVALIDATE_MS", 1000);
+        boolean watch = !configFile.getOption("LISTING_WATCH", "true").equals("false");
+        synchronized (instance) {
+            instance.clear();
+            if (watch && instance.watcher == null) instance.startWatcher();
+        }
+    }
+
+    /**
+     * Gives the listing of a directory, from memory if it is up to date.
+     * @param path a String containing the complete path to the directory.
+     * @return the Listing, or null if the directory cannot be read.
+     */
+    public Listing get(String path) {
+        String key = Paths.get(path).normalize().toString();
+        long now = System.currentTimeMillis();
+        Listing listing;
+        synchronized (this) {
+            listing = listings.get(key);
+        }
+        if (listing != null) {
+            // A cancelled watch falls back to the modification time check
+            boolean watched = listing.watchKey != null && listing.watchKey.isValid();
+            if (watched || now - listing.checkedAt < revalidateMillis) return listing;
+            NioWebServer.mayBlock();
+            if (modified(key) == listing.modified) {
+                listing.checkedAt = now;
+                return listing;
+            }
+            invalidate(key);
+        }
+        NioWebServer.mayBlock();
+        return generate(key, now);
+    }
+
+    /**
+     * Forgets the listing of a directory.
+     * @param path a String containing the complete path to the directory.
+     */
+    public synchronized void invalidate(String path) {
+        Listing listing = listings.remove(Paths.get(path).normalize().toString());
+        if (listing != null) forget(listing);
+    }
+
+    /**
+     * Generates the whole listing of a directory as a String, without caching it.
+     * @param path a String containing the complete path to the directory.
+     * @return a String containing the html, or null if the directory cannot be read.
+     */
+    public static String render(String path) {
+        StringBuilder html = new StringBuilder(new String(HEAD, StandardCharsets.UTF_8));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(path))) {
+            for (Path file : files) html.append(link(file));
+        } catch (IOException e) {
+            return null;
+        }
+        html.append(new String(TAIL, StandardCharsets.UTF_8));
+        return html.toString();
+    }
+
+    /**
+     * Reads the directory until the listing is complete or it grows over LISTING_MAX_BYTES.
+     */
+    private Listing generate(String key, long now) {
+        Path directory = Paths.get(key);
+        long modified = modified(key);
+        // Registered before reading, so no change made while it is read is lost
+        WatchKey watchKey = watch(directory, key);
+        DirectoryStream<Path> files;
+        try {
+            files = Files.newDirectoryStream(directory);
+        } catch (IOException e) {
+            if (watchKey != null) unwatch(watchKey);
+            return null;
+        }
+        Iterator<Path> entries = files.iterator();
+        byte[] html = Arrays.copyOf(HEAD, Math.max(4096, HEAD.length * 2));
+        int length = HEAD.length;
+        try {
+            while (entries.hasNext()) {
+                byte[] link = link(entries.next()).getBytes(StandardCharsets.UTF_8);
+                if (length + link.length > html.length) html = Arrays.copyOf(html, Math.max(html.length * 2, length + link.length));
+                System.arraycopy(link, 0, html, length, link.length);
+                length += link.length;
+                // Too big to be cached: the rest of it is generated while it is sent
+                if (length > maxBytes) {
+                    if (watchKey != null) unwatch(watchKey);
+                    return new Listing(Arrays.copyOf(html, length), files, entries);
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            close(files);
+            if (watchKey != null) unwatch(watchKey);
+            return null;
+        }
+        close(files);
+        byte[] complete = Arrays.copyOf(html, length + TAIL.length);
+        System.arraycopy(TAIL, 0, complete, length, TAIL.length);
+        Listing listing = new Listing(complete, modified, now, watchKey);
+        synchronized (this) {
+            // The directory may have changed after being watched, and its listing already be invalid
+            if (watchKey != null && !watchKey.isValid()) return listing;
+            Listing old = listings.put(key, listing);
+            // A directory is registered once, the new listing may share the WatchKey of the old one
+            if (old != null && old.watchKey != watchKey) forget(old);
+            evict();
+        }
+        return listing;
+    }
+
+    private static String link(Path file) {
+        String name = file.getFileName().toString();
+        return "<a href=" + name + "> " + name + "</a>\n";
+    }
+
+    private static long modified(String path) {
+        try {
+            return Files.readAttributes(Paths.get(path), BasicFileAttributes.class).lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void close(DirectoryStream<Path> files) {
+        try {
+            files.close();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the least recently used listings until there are LISTING_CACHE_ENTRIES.
+     * Must be called holding the lock of the cache.
+     */
+    private void evict() {
+        Iterator<Listing> eldest = listings.values().iterator();
+        while (listings.size() > maxEntries && eldest.hasNext()) {
+            forget(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes every listing. Must be called holding the lock of the cache.
+     */
+    private void clear() {
+        for (Listing listing : listings.values()) forget(listing);
+        listings.clear();
+    }
+
+    /**
+     * Stops watching the directory of a listing removed from the cache.
+     * Must be called holding the lock of the cache.
+     */
+    private void forget(Listing listing) {
+        if (listing.watchKey != null) unwatch(listing.watchKey);
+    }
+
+    private void startWatcher() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Error: Cannot watch directories, listings are checked with their modification time");
+            return;
+        }
+        Thread thread = new Thread(this::watchLoop, "webserver-listing-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized WatchKey watch(Path directory, String key) {
+        if (watcher == null) return null;
+        try {
+            WatchKey watchKey = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(watchKey, key);
+            return watchKey;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private synchronized void unwatch(WatchKey watchKey) {
+        watched.remove(watchKey);
+        watchKey.cancel();
+    }
+
+    /**
+     * Forgets the listings of the directories where files are created or deleted.
+     */
+    private void watchLoop() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean overflow = false;
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+            }
+            synchronized (this) {
+                if (overflow) {
+                    clear();
+                    continue;
+                }
+                String key = watched.remove(watchKey);
+                watchKey.cancel();
+                if (key == null) continue;
+                Listing listing = listings.get(key);
+                if (listing != null && listing.watchKey == watchKey) listings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * The html index of a directory: complete and cacheable, or a first part
+     * and the entries still to be read.
+     */
+    public static final class Listing {
+        private final byte[] html;
+        private final long modified;
+        private final WatchKey watchKey;
+        private final DirectoryStream<Path> files;
+        private final Iterator<Path> entries;
+        private volatile long checkedAt;
+
+        Listing(byte[] html, long modified, long checkedAt, WatchKey watchKey) {
+            this.html = html;
+            this.modified = modified;
+            this.checkedAt = checkedAt;
+            this.watchKey = watchKey;
+            this.files = null;
+            this.entries = null;
+        }
+
+        Listing(byte[] head, DirectoryStream<Path> files, Iterator<Path> entries) {
+            this.html = head;
+            this.modified = -1;
+            this.watchKey = null;
+            this.files = files;
+            this.entries = entries;
+        }
+
+        /**
+         * Tells if the listing is complete, or it must be generated while it is sent.
+         * @return true if getHtml() gives the whole listing.
+         */
+        public boolean isComplete() {
+            return files == null;
+        }
+
+        /**
+         * Gives the html of a complete listing, or the first part of a streamed one.
+         * @return a byte[] with the html. It must not be modified.
+         */
+        public byte[] getHtml() {
+            return html;
+        }
+
+        /**
+         * Gives a version of the listing, that changes when the directory changes.
+         * @return a long with the modification time of the directory when it was read.
+         */
+        public long getVersion() {
+            return modified;
+        }
+
+        /**
+         * Gives the rest of a streamed listing. It can be called once.
+         * @return a Source that reads the rest of the directory, or null if the listing is complete.
+         */
+        public HttpResponse.Source rest() {
+            if (files == null) return null;
+            return new HttpResponse.Source() {
+                private boolean ended;
+
+                @Override
+                public ByteBuffer next() throws IOException {
+                    if (ended) return null;
+                    StringBuilder piece = new StringBuilder(PIECE_SIZE + 256);
+                    try {
+                        while (piece.length() < PIECE_SIZE && entries.hasNext()) piece.append(link(entries.next()));
+                        if (!entries.hasNext()) {
+                            ended = true;
+                            piece.append(new String(TAIL, StandardCharsets.UTF_8));
+                        }
+                    } catch (DirectoryIteratorException e) {
+                        throw e.getCause();
+                    }
+                    return ByteBuffer.wrap(piece.toString().getBytes(StandardCharsets.UTF_8));
+                }
+
+                @Override
+                public boolean isBlocking() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    DirectoryListing.close(files);
+                }
+            };
+        }
+    }
+}
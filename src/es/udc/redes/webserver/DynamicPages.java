@@ -1,7 +1,5 @@
 package es.udc.redes.webserver;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Date;
 
 /**
  * This class manages the entire server HTTP/1.0 GET response on dynamic pages.
@@ -12,38 +10,15 @@ import java.util.Date;
 public class DynamicPages {
     
     /**
-     * Extracts the variables from the dynamic request.
+     * Extracts the variables from the dynamic request, decoding the "%XX"
+     * escapes as UTF-8 and '+' as a space. A repeated variable keeps its first
+     * value, QueryStringDecoder.decodeAll gives all of them.
      * @param petition a string containing the petition.
      * @return a pair "key,value" with each variable name and it's value, null 
-     * if there aren't variables on the request.
+     * if the petition isn't a dynamic request.
      */
     static public Map<String, String> parseVariables(String petition) {
-        Map<String, String> map = new HashMap();
-        // Splits the petition in two parts, name and varibles
-        String [] parts = petition.split("\\.do");
-        if (parts.length!=2) return null;
-        StringBuilder resourceName = new StringBuilder(parts[0]);
-        
-        // Removes / from the name and inserts on the HashMap
-        resourceName.deleteCharAt(0);
-        map.put("0x0Codename", "es.udc.redes.webserver.".concat(resourceName.toString()));
-        
-        // Extracts the variables from the petition and adds them into the HashMap
-        StringBuilder variables = new StringBuilder(parts[1]);
-        if (variables.charAt(0) == '/') variables.deleteCharAt(0);
-        String [] vars = variables.toString().split("&");
-        if (vars[0].charAt(0) == '?') vars[0]= vars[0].substring(1);
-        for(String str : vars) {
-            String [] pair = str.split("=");
-            String key = pair[0];
-            String value;
-            if (pair.length == 1) value = "";
-            else value = pair[1];
-            map.put(key, value);
-        }
-        
-        
-        return map;
+        return QueryStringDecoder.decodeDynamic(petition);
     }
     
     /**
@@ -62,17 +37,70 @@ public class DynamicPages {
         return null;
     }
     
+    /**
+     * Gives the servlet of a dynamic request if it writes its page while it is generated.
+     * @param parameters a pair "key,value" containing each variable name and it's value, or null.
+     * @return the StreamingServlet, or null if there isn't one or it is a MiniServlet (those return the whole page).
+     */
+    static public StreamingServlet getStreamingServlet(Map<String, String> parameters) {
+        if (parameters == null) return null;
+        StreamingServlet servlet = ServletRegistry.getInstance().lookup(parameters.get("0x0Codename"));
+        return servlet instanceof MiniServletAdapter ? null : servlet;
+    }
+    
+    /**
+     * Returns the header of a dynamic resource that is sent while it is generated.
+     * HTTP/1.1 answers are sent with the chunked transfer coding; HTTP/1.0 ones
+     * end when the connection is closed, so keepAlive must be false for them.
+     * @param version a String with the protocol version of the answer, "HTTP/1.0" or "HTTP/1.1".
+     * @param keepAlive a boolean, true if the connection stays open after the answer.
+     * @return a String containing the header.
+     */
+    static public String getStreamedHeader(String version, boolean keepAlive) {
+        StringBuilder header = new StringBuilder("");
+        header.append(version);
+        header.append(" 200 OK\nDate: ");
+        header.append(HttpDates.now());
+        header.append("\nServer: Ubuntu/19.10(Unix)\n");
+        header.append(HttpUtils.connectionLine(keepAlive));
+        if (version.equals("HTTP/1.1")) header.append("Transfer-Encoding: chunked\n");
+        header.append("Content-Type: text/html\n\n");
+        return header.toString();
+    }
+    
     /**
      * Returns the header of the dynamic resource.
      * @param strLen a long containing the length of the dynamic resource.1
+     * @param version a String with the protocol version of the answer, "HTTP/1.0" or "HTTP/1.1".
+     * @param keepAlive a boolean, true if the connection stays open after the answer.
      * @return a String containing the header.
      */
-    static public String getDynamicHeader(long strLen) {
+    static public String getDynamicHeader(long strLen, String version, boolean keepAlive) {
+        return getDynamicHeader(strLen, version, keepAlive, null);
+    }
+    
+    /**
+     * Returns the header of the dynamic resource, sent compressed.
+     * @param strLen a long containing the length of the compressed resource.
+     * @param version a String with the protocol version of the answer, "HTTP/1.0" or "HTTP/1.1".
+     * @param keepAlive a boolean, true if the connection stays open after the answer.
+     * @param encoding a String with the content coding of the resource, or null if it isn't compressed.
+     * @return a String containing the header.
+     */
+    static public String getDynamicHeader(long strLen, String version, boolean keepAlive, String encoding) {
         StringBuilder header = new StringBuilder("");
-        header.append("HTTP/1.0 200 OK\nDate: ");
-        header.append(String.format("%tc", new Date()));
-        header.append("\nServer: Ubuntu/19.10(Unix)\nContent-Length: ");
+        header.append(version);
+        header.append(" 200 OK\nDate: ");
+        header.append(HttpDates.now());
+        header.append("\nServer: Ubuntu/19.10(Unix)\n");
+        header.append(HttpUtils.connectionLine(keepAlive));
+        header.append("Content-Length: ");
         header.append(Long.toString(strLen));
+        if (encoding != null) {
+            header.append("\nContent-Encoding: ");
+            header.append(encoding);
+            header.append("\nVary: Accept-Encoding");
+        }
         header.append("\nContent-Type: text/html\n\n");
         return header.toString();
     }
@@ -0,0 +1,113 @@
+package es.udc.redes.webserver;
+
+/**
+ * This class creates and compares the entity tags (ETag lines) of the static
+ * resources. A tag is made from the size and modification time of the resource,
+ * so it doesn't need to read the content. Resources modified during the last
+ * second get a weak tag, as the file system may not tell apart two changes
+ * made on the same second.
+ * @author Miguel Blanco Godón.
+ */
+public final class EntityTag {
+
+    // The constructor is declared private to prevent instantiation.
+    private EntityTag() {
+
+    }
+
+    /**
+     * Creates the tag of a resource.
+     * @param length a long with the size of the resource.
+     * @param lastModified a long with the modification time of the resource, in milliseconds.
+     * @param now a long with the current time, in milliseconds.
+     * @return a String with the quoted tag, like "\"5f3a1c-d8\"", with the W/ prefix if it is weak.
+     */
+    public static String of(long length, long lastModified, long now) {
+        String tag = strong(length, lastModified);
+        return isWeak(lastModified, now) ? "W/" + tag : tag;
+    }
+
+    /**
+     * Creates the strong tag of a resource that cannot change, like the ones of the ResourceArchive.
+     * @param length a long with the size of the resource.
+     * @param lastModified a long with the modification time of the resource, in milliseconds.
+     * @return a String with the quoted tag.
+     */
+    public static String strong(long length, long lastModified) {
+        return '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '"';
+    }
+
+    /**
+     * Tells if a resource modified at a time would get a weak tag.
+     * @param lastModified a long with the modification time of the resource, in milliseconds.
+     * @param now a long with the current time, in milliseconds.
+     * @return true if the resource was modified less than a second ago.
+     */
+    public static boolean isWeak(long lastModified, long now) {
+        return now - lastModified < 1000;
+    }
+
+    /**
+     * Gives the tag of a compressed variant of a resource.
+     * @param tag a String with the tag of the resource.
+     * @param encoding a String with the content coding of the variant, like "gzip".
+     * @return a String with the tag of the variant.
+     */
+    public static String variant(String tag, String encoding) {
+        return tag.substring(0, tag.length() - 1) + '-' + encoding + '"';
+    }
+
+    /**
+     * Searches a tag of a resource, or of one of its compressed variants, on the
+     * value of an If-None-Match line. Tags are compared with the weak comparison.
+     * @param ifNoneMatch a String with the value of the If-None-Match line.
+     * @param tag a String with the tag of the resource.
+     * @return a String with the tag that matched, to be sent on the 304 answer, or null if none matched.
+     */
+    public static String match(String ifNoneMatch, String tag) {
+        if (ifNoneMatch.trim().equals("*")) return tag;
+        String opaque = opaque(tag);
+        String base = opaque.substring(0, opaque.length() - 1);
+        int start = 0;
+        while (start < ifNoneMatch.length()) {
+            int end = nextTag(ifNoneMatch, start);
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (!candidate.isEmpty()) {
+                String candidateOpaque = opaque(candidate);
+                if (candidateOpaque.equals(opaque)) return tag;
+                // Tags of the compressed variants, '"<tag>-gzip"' or '"<tag>-deflate"'
+                if (candidateOpaque.equals(base + "-gzip\"") || candidateOpaque.equals(base + "-deflate\"")) return candidate;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Compares two tags with the strong comparison, as If-Range requires.
+     * @param candidate a String with the tag sent by the client.
+     * @param tag a String with the tag of the resource.
+     * @return true if both tags are strong and equal.
+     */
+    public static boolean strongMatch(String candidate, String tag) {
+        candidate = candidate.trim();
+        return !candidate.startsWith("W/") && !tag.startsWith("W/") && candidate.equals(tag);
+    }
+
+    /**
+     * Gives the end of the tag that starts on a position of a list of tags.
+     */
+    private static int nextTag(String tags, int start) {
+        boolean quoted = false;
+        for (int i = start; i < tags.length(); i++) {
+            char c = tags.charAt(i);
+            if (c == '"') quoted = !quoted;
+            else if (c == ',' && !quoted) return i;
+        }
+        return tags.length();
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
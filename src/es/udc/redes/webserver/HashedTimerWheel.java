@@ -0,0 +1,158 @@
+package es.udc.redes.webserver;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs tasks after a delay, for many timeouts at once, with one
+ * thread. The time is cut in ticks of TICK_MILLIS milliseconds and the timeouts
+ * are kept on a wheel of WHEEL_SIZE buckets, each one a linked list of the
+ * timeouts that end on its tick (or on the same tick of a later turn of the
+ * wheel). Scheduling and cancelling are O(1) and each tick only looks at one
+ * bucket, so tens of thousands of connections with a deadline each cost no
+ * more than a few. The tasks run late by up to a tick and must be short; they
+ * run on the timer thread.
+ * Only the timer thread touches the buckets: new and cancelled timeouts are
+ * handed to it on queues and applied at the next tick.
+ * @author Miguel Blanco Godón.
+ */
+public final class HashedTimerWheel {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+    private static final HashedTimerWheel instance = new HashedTimerWheel();
+
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    // Ticks already run, only read and written by the timer thread
+    private long tick;
+
+    private HashedTimerWheel() {
+        Thread timer = new Thread(this::run, "webserver-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Gives the timer shared by every connection.
+     * @return the HashedTimerWheel of the server.
+     */
+    public static HashedTimerWheel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Runs a task after a delay, unless it is cancelled before.
+     * @param task the Runnable to run on the timer thread.
+     * @param delayMillis a long with the delay in milliseconds.
+     * @return the Timeout, to cancel it.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            // Sleeps until the end of the next tick
+            long end = (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime() - startTime) < end) LockSupport.parkNanos(end - now);
+            removeCancelled();
+            addNew();
+            expire(wheel[(int) (tick & (WHEEL_SIZE - 1))]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) unlink(timeout);
+        }
+    }
+
+    private void addNew() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != Timeout.WAITING) continue;
+            // Timeouts already due go to the bucket of this tick
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / WHEEL_SIZE;
+            int bucket = (int) (ticks & (WHEEL_SIZE - 1));
+            timeout.bucket = bucket;
+            timeout.next = wheel[bucket];
+            if (timeout.next != null) timeout.next.previous = timeout;
+            wheel[bucket] = timeout;
+        }
+    }
+
+    /**
+     * Runs the timeouts of a bucket that end on this turn of the wheel.
+     */
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else wheel[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * A task waiting on the wheel.
+     */
+    public final class Timeout {
+        private static final int WAITING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+        private final Runnable task;
+        // Nanoseconds from the start of the timer
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Position on the wheel, only used by the timer thread
+        private long rounds;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, if it hasn't run yet.
+         * @return true if it has been cancelled, false if it has already run or it was cancelled before.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the file attributes of the resources and the header lines
+ * that describe them (Content-Length, Content-Type, Last-Modified, ETag,
+ * Accept-Ranges and Vary), so answering a petition doesn't stat the file several
+ * times nor guess its content type again. Conditional petitions are answered
+ * with the cached validators, without touching the file.
+ * An entry is checked against its file with a single stat at most once every
+ * CACHE_REVALIDATE_MS milliseconds, and built again if the modification time
+ * or size changed, or if its weak ETag can already be a strong one. Missing files are cached too. The HEADER_CACHE_ENTRIES least
+ * recently used entries are kept. The stat is never done on an event loop of
+ * the NioWebServer, the petition goes to a dispatcher thread instead.
+ * @author Miguel Blanco Godón.
+ */
+public final class HeaderCache {
+    private static final HeaderCache instance = new HeaderCache();
+
+    // Entries in access order, the first one is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile int maxEntries = 4096;
+    private volatile long revalidateMillis = 1000;
+
+    private HeaderCache() {
+
+    }
+
+    /**
+     * Gives the cache shared by every connection.
+     * @return the HeaderCache of the server.
+     */
+    public static HeaderCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the cache from the configuration file.
+     * @param configFile a ConfFile with the HEADER_CACHE_ENTRIES and CACHE_REVALIDATE_MS lines.
+     */
+    public static void configure(ConfFile configFile) {
+        instance.maxEntries = configFile.getIntOption("HEADER_CACHE_ENTRIES", 4096);
+        instance.revalidateMillis = configFile.getIntOption("CACHE_REVALIDATE_MS", 1000);
+        synchronized (instance) {
+            instance.entries.clear();
+        }
+    }
+
+    /**
+     * Gives the attributes and header lines of a resource, from memory if they are up to date.
+     * @param path a String that contains the path to the resource.
+     * @return the Entry of the resource; it tells if the resource exists.
+     */
+    public Entry get(String path) {
+        String key = Paths.get(path).normalize().toString();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (now - entry.checkedAt < revalidateMillis) {
+                hits.increment();
+                return entry;
+            }
+            NioWebServer.mayBlock();
+            BasicFileAttributes attributes = attributes(key);
+            if (entry.matches(attributes, now)) {
+                entry.checkedAt = now;
+                hits.increment();
+                return entry;
+            }
+        }
+        NioWebServer.mayBlock();
+        misses.increment();
+        entry = new Entry(key, attributes(key), now);
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Forgets the entry of a resource, so the next petition reads its attributes again.
+     * @param path a String that contains the path to the resource.
+     */
+    public synchronized void invalidate(String path) {
+        entries.remove(Paths.get(path).normalize().toString());
+    }
+
+    /**
+     * Gives the number of petitions answered with an entry already in memory.
+     * @return a long with the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gives the number of entries built from the file attributes.
+     * @return a long with the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static BasicFileAttributes attributes(String path) {
+        try {
+            return Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The attributes of a resource and its header lines.
+     */
+    public static final class Entry {
+        private final String path;
+        private final boolean exists;
+        private final boolean directory;
+        private final boolean readable;
+        private final long length;
+        private final long lastModified;
+        private final String contentType;
+        private final String etag;
+        private final byte[] headerLines;
+        private volatile long checkedAt;
+
+        Entry(String path, BasicFileAttributes attributes, long checkedAt) {
+            this.path = path;
+            this.checkedAt = checkedAt;
+            this.exists = attributes != null;
+            this.directory = exists && attributes.isDirectory();
+            this.length = exists ? attributes.size() : 0;
+            this.lastModified = exists ? attributes.lastModifiedTime().toMillis() : 0;
+            Path file = Paths.get(path);
+            this.readable = exists && Files.isReadable(file);
+            String type = null;
+            if (exists && !directory && readable) {
+                try {
+                    type = Files.probeContentType(file);
+                } catch (IOException e) {
+                    System.out.println("CANNOT GET FILE PATH");
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+            this.contentType = type == null ? "application/octet-stream" : type;
+            this.etag = EntityTag.of(length, lastModified, checkedAt);
+            if (exists && !directory && readable) {
+                String separator = System.lineSeparator();
+                headerLines = ("Content-Length: " + length + separator
+                        + "Content-Type: " + contentType + separator
+                        + "Last-Modified: " + HttpDates.format(lastModified) + separator
+                        + "ETag: " + etag + separator
+                        + "Accept-Ranges: bytes" + separator
+                        + (CompressedCache.getInstance().isCompressible(contentType, length)
+                                ? "Vary: Accept-Encoding" + separator : "")).getBytes();
+            } else {
+                headerLines = null;
+            }
+        }
+
+        private boolean matches(BasicFileAttributes attributes, long now) {
+            if (attributes == null) return !exists;
+            return exists && attributes.isDirectory() == directory && attributes.size() == length
+                    && attributes.lastModifiedTime().toMillis() == lastModified
+                    && (!etag.startsWith("W/") || EntityTag.isWeak(lastModified, now));
+        }
+
+        /**
+         * Gives the normalized path of the resource.
+         * @return a String with the path.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Tells if the resource exists.
+         * @return true if there is a file or directory on the path.
+         */
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * Tells if the resource is a directory.
+         * @return true if it is a directory.
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * Tells if the server can read the resource.
+         * @return true if it is readable.
+         */
+        public boolean canRead() {
+            return readable;
+        }
+
+        /**
+         * Tells if the resource is a file the server can send.
+         * @return true if it exists, it isn't a directory and it is readable.
+         */
+        public boolean isSendable() {
+            return headerLines != null;
+        }
+
+        /**
+         * Gives the size of the resource.
+         * @return a long with the size in bytes, 0 if it doesn't exist.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Gives the last modification time of the resource.
+         * @return a long with the time in milliseconds, 0 if it doesn't exist.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Gives the entity tag of the resource, made from its size and modification time.
+         * @return a String with the quoted tag.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Gives the MIME type of the resource.
+         * @return a String like "text/html", "application/octet-stream" if it is unknown.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Gives the Content-Length, Content-Type and Last-Modified header lines of a sendable resource.
+         * @return a byte[] with the lines, or null if the resource isn't sendable. It must not be modified.
+         */
+        byte[] getHeaderLines() {
+            return headerLines;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * This class measures the methods on the path of every petition, so an
+ * optimization can be proved (or disproved) before it is used:
+ * HttpUtils.parse, getHeader, convertToByte and readFile,
+ * DynamicPages.parseVariables, ServerUtils.processDynRequest and
+ * ConfFile.buildHTMLindexFile.
+ * The inputs are the petition lines written on access_log.txt and
+ * errors_log.txt of a server directory, replayed in the same order. The
+ * directory is copied to a temporary one first, so the records written while
+ * measuring don't change it.
+ * Each benchmark is run WARMUP times and then ITERATIONS times, during
+ * TIME milliseconds each (-Dbench.warmup, -Dbench.iterations and -Dbench.time),
+ * and gives the mean time per operation, its standard deviation between
+ * iterations and the bytes allocated per operation, as counted by the
+ * ThreadMXBean of the JVM.
+ * @author Miguel Blanco Godón.
+ */
+public final class HotPathBenchmark {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 10);
+    private static final long TIME_NANOS = Integer.getInteger("bench.time", 1000) * 1000000L;
+    // Results are added here so the JIT cannot remove the measured code
+    private static volatile long sink;
+
+    private final List<Case> cases = new ArrayList<>();
+
+    /**
+     * Runs the benchmarks.
+     * @param argv a String array with the server directory (p1/resources by
+     * default) and, optionally, a text that the names of the benchmarks to run must contain.
+     * @throws IOException if the directory cannot be copied.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length > 2) {
+            System.err.println("Format: HotPathBenchmark [<directory>] [<benchmark name filter>]");
+            System.exit(-1);
+        }
+        Path source = Paths.get(argv.length > 0 ? argv[0] : "p1/resources");
+        String filter = argv.length > 1 ? argv[1] : "";
+        Path directory = Files.createTempDirectory("webserver-bench");
+        try {
+            copy(source, directory);
+            List<String> petitions = petitions(source);
+            if (petitions.isEmpty()) {
+                System.err.println("Error: No petitions found on the log files of " + source);
+                System.exit(-1);
+            }
+            HotPathBenchmark benchmark = new HotPathBenchmark(directory, petitions);
+            System.out.println(petitions.size() + " petitions from " + source + ", " + WARMUP + " warmup and "
+                    + ITERATIONS + " measured iterations of " + TIME_NANOS / 1000000 + " ms");
+            System.out.printf("%-32s %12s %10s %12s%n", "Benchmark", "ns/op", "+-", "B/op");
+            for (Case benchmarkCase : benchmark.cases) {
+                if (benchmarkCase.name.contains(filter)) benchmarkCase.measure();
+            }
+        } finally {
+            AccessLogger.getInstance().shutdown();
+            delete(directory);
+        }
+    }
+
+    /**
+     * Prepares the inputs of every benchmark.
+     * @param directory the Path of the server directory to use.
+     * @param petitions a List with the petition lines, like "GET /index.html HTTP/1.0".
+     * @throws IOException if the configuration file cannot be written.
+     */
+    private HotPathBenchmark(Path directory, List<String> petitions) throws IOException {
+        ConfFile configFile = configure(directory);
+        Connection connection = new Connection(configFile);
+
+        List<String> requests = new ArrayList<>();
+        List<String[]> tokens = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        List<String> dynamic = new ArrayList<>();
+        for (String petition : petitions) {
+            String[] petitionTokens = petition.split(" ");
+            StringBuilder request = new StringBuilder(petition).append("\r\n");
+            if (petitionTokens[2].equals("HTTP/1.1")) request.append("Host: localhost\r\nAccept-Encoding: gzip, deflate\r\n");
+            requests.add(request.append("\r\n").toString());
+            tokens.add(petitionTokens);
+            String resource = petitionTokens[1];
+            if (resource.contains(".do")) dynamic.add(resource);
+            else if (Files.isRegularFile(directory.resolve("." + resource))) files.add(configFile.getLocalServerDir() + resource);
+        }
+        List<Map<String, String>> parameters = new ArrayList<>();
+        for (String resource : dynamic) parameters.add(DynamicPages.parseVariables(resource));
+        String header = HttpUtils.getHeader(new String[] {"GET", "/index.html", "HTTP/1.1"}, false, false, connection);
+        byte[] body = HttpUtils.readFile(configFile.getLocalServerDir() + "/index.html");
+        String[] listings = {directory.toString(), directory.resolve("dir").toString()};
+
+        cases.add(new Case("HttpUtils.parse", requests.size(), i -> {
+            HttpResponse answer = HttpUtils.parse(requests.get(i), connection);
+            answer.writeTo(OutputStream.nullOutputStream(), null);
+            answer.close();
+            return answer.length();
+        }));
+        cases.add(new Case("HttpUtils.getHeader", tokens.size(),
+                i -> HttpUtils.getHeader(tokens.get(i), false, false, connection).length()));
+        if (body != null) {
+            cases.add(new Case("HttpUtils.convertToByte", 1, i -> HttpUtils.convertToByte(header, body).length));
+        }
+        if (!files.isEmpty()) {
+            cases.add(new Case("HttpUtils.readFile", files.size(), i -> {
+                byte[] content = HttpUtils.readFile(files.get(i));
+                return content == null ? 0 : content.length;
+            }));
+        }
+        if (!dynamic.isEmpty()) {
+            cases.add(new Case("DynamicPages.parseVariables", dynamic.size(),
+                    i -> DynamicPages.parseVariables(dynamic.get(i)).size()));
+            cases.add(new Case("ServerUtils.processDynRequest", parameters.size(), i -> {
+                Map<String, String> variables = parameters.get(i);
+                String answer = ServerUtils.processDynRequest(variables.get("0x0Codename"), variables);
+                return answer == null ? 0 : answer.length();
+            }));
+        }
+        cases.add(new Case("ConfFile.buildHTMLindexFile", listings.length, i -> {
+            String html = ConfFile.buildHTMLindexFile(listings[i]);
+            return html == null ? 0 : html.length();
+        }));
+    }
+
+    /**
+     * Writes the configuration of a copied server directory, with DIRECTORY
+     * pointing to it, and puts it in use.
+     * @param directory the Path of the server directory to use.
+     * @param options the "KEY: value" lines that replace the ones of the directory with the same key.
+     * @return the ConfFile of the directory.
+     * @throws IOException if the configuration file cannot be written.
+     */
+    static ConfFile configure(Path directory, String... options) throws IOException {
+        Path properties = directory.resolve(ConfFile.FILE_NAME);
+        List<String> lines = new ArrayList<>();
+        if (Files.exists(properties)) {
+            for (String line : Files.readAllLines(properties)) {
+                if (!line.startsWith("DIRECTORY:") && !replaced(line, options)) lines.add(line);
+            }
+        } else {
+            lines.add("PORT: 5000");
+            lines.add("DIRECTORY_INDEX: index.html");
+            lines.add("ALLOW: true");
+        }
+        lines.add("DIRECTORY: " + directory);
+        lines.addAll(Arrays.asList(options));
+        Files.write(properties, lines);
+        ConfFile configFile = ConfFile.read(properties);
+        ServerConfig.set(configFile);
+        return configFile;
+    }
+
+    private static boolean replaced(String line, String[] options) {
+        int separator = line.indexOf(':');
+        if (separator < 0) return false;
+        for (String option : options) {
+            if (option.startsWith(line.substring(0, separator + 1))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives the petition lines of the access_log.txt and errors_log.txt files of
+     * a directory, leaving out the petitions of the log files themselves, which
+     * change while measuring.
+     */
+    private static List<String> petitions(Path directory) throws IOException {
+        List<String> petitions = new ArrayList<>();
+        for (String log : new String[] {"access_log.txt", "errors_log.txt"}) {
+            Path file = directory.resolve(log);
+            if (!Files.exists(file)) continue;
+            for (String line : new String(Files.readAllBytes(file), "ISO-8859-1").split("\r?\n")) {
+                if (!line.startsWith("Petition received: ")) continue;
+                String petition = line.substring("Petition received: ".length()).trim();
+                String[] tokens = petition.split(" ");
+                if (tokens.length != 3 || !tokens[1].startsWith("/") || !tokens[2].startsWith("HTTP/1.")) continue;
+                if (tokens[1].endsWith("_log.txt")) continue;
+                petitions.add(petition);
+            }
+        }
+        return petitions;
+    }
+
+    static void copy(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) Files.createDirectories(copy);
+                else Files.copy(path, copy);
+            }
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+        }
+    }
+
+    /**
+     * Gives the bytes allocated by the current thread so far.
+     * @return a long with the bytes, or -1 if the JVM doesn't count them.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The code measured by a benchmark.
+     */
+    private interface Operation {
+
+        /**
+         * Runs the operation once.
+         * @param input an int with the number of the input to use.
+         * @return a long computed from the result, so it is not optimized away.
+         * @throws Exception if the measured code fails.
+         */
+        long run(int input) throws Exception;
+    }
+
+    /**
+     * A benchmark: an operation and the number of inputs it goes through.
+     */
+    private static final class Case {
+        private final String name;
+        private final int inputs;
+        private final Operation operation;
+        private int next;
+
+        Case(String name, int inputs, Operation operation) {
+            this.name = name;
+            this.inputs = inputs;
+            this.operation = operation;
+        }
+
+        /**
+         * Runs the warmup and measured iterations and writes the results.
+         */
+        void measure() {
+            try {
+                for (int i = 0; i < WARMUP; i++) iteration();
+                double[] times = new double[ITERATIONS];
+                double bytes = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    double[] result = iteration();
+                    times[i] = result[0];
+                    bytes += result[1];
+                }
+                double mean = 0;
+                for (double time : times) mean += time / ITERATIONS;
+                double variance = 0;
+                for (double time : times) variance += (time - mean) * (time - mean) / Math.max(1, ITERATIONS - 1);
+                System.out.printf("%-32s %12.1f %10.1f %12s%n", name, mean, Math.sqrt(variance),
+                        bytes < 0 ? "n/a" : String.format("%.1f", bytes / ITERATIONS));
+            } catch (Exception e) {
+                System.out.printf("%-32s failed: %s%n", name, e);
+            }
+        }
+
+        /**
+         * Runs the operation for TIME milliseconds.
+         * @return a double array with the nanoseconds and the bytes allocated per operation.
+         */
+        private double[] iteration() throws Exception {
+            long operations = 0;
+            long result = 0;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                // Checks the clock every 16 operations, so reading it costs little
+                for (int i = 0; i < 16; i++) {
+                    result += operation.run(next);
+                    if (++next == inputs) next = 0;
+                }
+                operations += 16;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < TIME_NANOS);
+            long bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+            sink += result;
+            return new double[] {(double) elapsed / operations, bytes < 0 ? -1 : (double) bytes / operations};
+        }
+    }
+
+    /**
+     * A connection that is never opened, used to call the code that answers petitions.
+     */
+    static final class Connection implements HttpConnection {
+        private final ConfFile configFile;
+        private final SocketAddress address = new InetSocketAddress("127.0.0.1", 40000);
+        private final Date receptionTime = new Date();
+        private boolean keepAlive;
+
+        Connection(ConfFile configFile) {
+            this.configFile = configFile;
+        }
+
+        @Override
+        public ConfFile getConfigurationFile() {
+            return configFile;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public Date getReceptionTime() {
+            return receptionTime;
+        }
+
+        @Override
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        @Override
+        public void setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+    }
+}
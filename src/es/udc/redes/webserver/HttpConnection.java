@@ -0,0 +1,43 @@
+package es.udc.redes.webserver;
+import java.net.SocketAddress;
+import java.util.Date;
+
+/**
+ * This interface describes a client connection as seen by HttpUtils, so the
+ * same GET/HEAD logic can be used by every server engine (one task per socket
+ * with WebServerThread or a selector event loop with NioWebServer).
+ * @author Miguel Blanco Godón.
+ */
+public interface HttpConnection {
+
+    /**
+     * Gives the ConfFile containing some server info.
+     * @return a ConfFile with port, directory_index, working directory and allow clause info.
+     */
+    public ConfFile getConfigurationFile();
+
+    /**
+     * Gives the address of the client side of the connection.
+     * @return a SocketAddress with the client IP address and port.
+     */
+    public SocketAddress getRemoteAddress();
+
+    /**
+     * Gives the time when the message was received.
+     * @return a Date in Date class format.
+     */
+    public Date getReceptionTime();
+
+    /**
+     * Tells if the connection stays open after answering the current petition.
+     * @return true on a persistent (keep-alive) connection.
+     */
+    public boolean isKeepAlive();
+
+    /**
+     * Sets if the connection stays open after answering the current petition.
+     * It is called by HttpUtils.parse from the petition version and Connection header.
+     * @param keepAlive a boolean, true to keep the connection open.
+     */
+    public void setKeepAlive(boolean keepAlive);
+}
@@ -0,0 +1,116 @@
+package es.udc.redes.webserver;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class formats the dates of the HTTP answers as RFC 1123 dates
+ * ("Sun, 06 Nov 1994 08:49:37 GMT") and parses the dates of the petitions in
+ * the three formats HTTP allows. The Date header line is shared by every
+ * answer and refreshed once per second by a ticker thread, so it isn't
+ * formatted again on every petition.
+ * @author Miguel Blanco Godón.
+ */
+public final class HttpDates {
+    private static final DateTimeFormatter RFC_1123 =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // The day names are skipped when parsing, so only these parts are checked.
+    // The obsolete formats are RFC 850 ("Sunday, 06-Nov-94 08:49:37 GMT") and asctime ("Sun Nov  6 08:49:37 1994")
+    private static final DateTimeFormatter RFC_1123_PARSER = parser("d MMM yyyy HH:mm:ss 'GMT'", false);
+    private static final DateTimeFormatter RFC_850 = parser("d-MMM-", true);
+    private static final DateTimeFormatter ASCTIME = parser("MMM d HH:mm:ss yyyy", false);
+    private static volatile String now = format(System.currentTimeMillis());
+    private static volatile byte[] dateLine = dateLine(now);
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "webserver-date-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            String date = format(System.currentTimeMillis());
+            dateLine = dateLine(date);
+            now = date;
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // The constructor is declared private to prevent instantiation.
+    private HttpDates() {
+
+    }
+
+    /**
+     * Formats a time as an HTTP date.
+     * @param millis a long with the time in milliseconds.
+     * @return a String with the RFC 1123 date.
+     */
+    public static String format(long millis) {
+        return RFC_1123.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses an HTTP date, like the one of an If-Modified-Since line.
+     * @param date a String with a date in RFC 1123, RFC 850 or asctime format.
+     * @return a long with the time in milliseconds, or -1 if it isn't a valid HTTP date.
+     */
+    public static long parse(String date) {
+        if (date == null) return -1;
+        date = date.trim();
+        int comma = date.indexOf(',');
+        int space = date.indexOf(' ');
+        DateTimeFormatter format;
+        if (comma == 3) {
+            format = RFC_1123_PARSER;
+            date = date.substring(comma + 1).trim();
+        } else if (comma > 3) {
+            format = RFC_850;
+            date = date.substring(comma + 1).trim();
+        } else if (space > 0) {
+            // asctime pads the day with a space
+            format = ASCTIME;
+            date = date.substring(space + 1).trim().replaceAll(" +", " ");
+        } else {
+            return -1;
+        }
+        try {
+            return Instant.from(format.parse(date)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gives the current date, with a precision of one second.
+     * @return a String with the RFC 1123 date of the current second.
+     */
+    public static String now() {
+        return now;
+    }
+
+    /**
+     * Gives the Date header line of the current second.
+     * @return a byte[] with the line, line separator included. It must not be modified.
+     */
+    public static byte[] dateLine() {
+        return dateLine;
+    }
+
+    private static DateTimeFormatter parser(String pattern, boolean twoDigitYear) {
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern(pattern);
+        // Two digit years are taken from 1970 to 2069
+        if (twoDigitYear) builder.appendValueReduced(ChronoField.YEAR, 2, 2, 1970).appendPattern(" HH:mm:ss 'GMT'");
+        return builder.toFormatter(Locale.US).withZone(ZoneOffset.UTC);
+    }
+
+    private static byte[] dateLine(String date) {
+        return ("Date: " + date + System.lineSeparator()).getBytes();
+    }
+}
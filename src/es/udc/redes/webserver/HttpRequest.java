@@ -0,0 +1,93 @@
+package es.udc.redes.webserver;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a petition head as parsed by HttpRequestParser: the
+ * petition line tokens (method, resource and version) and the header lines.
+ * @author Miguel Blanco Godón.
+ */
+public class HttpRequest {
+    private final String[] petition;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private boolean malformed;
+
+    /**
+     * Creates a petition from its first line tokens.
+     * @param petition a String array with the petition line split on spaces.
+     */
+    public HttpRequest(String[] petition) {
+        this.petition = petition;
+    }
+
+    /**
+     * Gives the petition line split on spaces, the way HttpUtils logs and checks it.
+     * @return a String array with the method, the resource and the version on a well formed petition.
+     */
+    public String[] getPetition() {
+        return petition;
+    }
+
+    /**
+     * Gives the method of the petition.
+     * @return a String like "GET" or "HEAD", or null if the petition line is empty.
+     */
+    public String getMethod() {
+        return petition.length > 0 ? petition[0] : null;
+    }
+
+    /**
+     * Gives the requested resource.
+     * @return a String like "/index.html", or null if the petition line hasn't got one.
+     */
+    public String getUri() {
+        return petition.length > 1 ? petition[1] : null;
+    }
+
+    /**
+     * Gives the protocol version of the petition.
+     * @return a String like "HTTP/1.1", or null if the petition line hasn't got one.
+     */
+    public String getVersion() {
+        return petition.length > 2 ? petition[2] : null;
+    }
+
+    /**
+     * Searches a header line, ignoring the case of its name.
+     * @param name a String with the header name, without ':'.
+     * @return a String with the trimmed value of the first header with that name, or null if it isn't on the petition.
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) return values.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Gives the number of header lines of the petition.
+     * @return an int with the number of headers.
+     */
+    public int getHeaderCount() {
+        return names.size();
+    }
+
+    /**
+     * Tells if the parser found an error (size or count limits, bad syntax) on the petition.
+     * Malformed petitions are answered with 400 Bad Request.
+     * @return true if the petition cannot be answered.
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    void addHeader(String name, String value) {
+        names.add(name);
+        values.add(value);
+    }
+
+    void setMalformed() {
+        this.malformed = true;
+    }
+}
@@ -0,0 +1,234 @@
+package es.udc.redes.webserver;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class parses petition heads directly from the received bytes. It is
+ * incremental: the bytes can be given in any number of pieces, as they are
+ * read from the socket, and only the final Strings of the petition line and
+ * header lines are created. The head size is limited to HEADER_MAX_SIZE bytes
+ * and the number of headers to HEADER_MAX_COUNT; petitions going over them, or
+ * with a body framing the server doesn't understand, are marked as malformed.
+ * A petition body announced with Content-Length is skipped, so the next
+ * pipelined petition is parsed correctly.
+ * Lines end in "\r\n", "\n" or a bare "\r", as when the head was split with
+ * "\r?\n|\r"; the "\n" after a "\r" may come in the next piece.
+ * One parser is used by one connection, petition after petition.
+ * @author Miguel Blanco Godón.
+ */
+public class HttpRequestParser {
+    private static final int PETITION_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int DONE = 3;
+
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    // The line being received, without the line terminator
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headSize;
+    private long bodyLeft;
+    private int state = PETITION_LINE;
+    // The last line ended in '\r', so a '\n' right after it is part of the same line end
+    private boolean afterCR;
+    private HttpRequest request;
+
+    /**
+     * Creates a parser with the limits of the configuration file.
+     * @param configFile a ConfFile with the HEADER_MAX_SIZE and HEADER_MAX_COUNT lines.
+     */
+    public HttpRequestParser(ConfFile configFile) {
+        this(configFile.getIntOption("HEADER_MAX_SIZE", 16384), configFile.getIntOption("HEADER_MAX_COUNT", 100));
+    }
+
+    /**
+     * Creates a parser with the given limits.
+     * @param maxHeadSize an int with the biggest petition head accepted, in bytes.
+     * @param maxHeaders an int with the maximum number of header lines accepted.
+     */
+    public HttpRequestParser(int maxHeadSize, int maxHeaders) {
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaders = maxHeaders;
+    }
+
+    /**
+     * Parses received bytes. It stops as soon as a whole petition has been parsed,
+     * so the bytes of the next pipelined petition are left for the next call.
+     * @param data a byte array with the received bytes.
+     * @param offset an int with the position of the first byte to parse.
+     * @param length an int with the number of bytes to parse.
+     * @return an int with the number of bytes used.
+     */
+    public int feed(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && state != DONE) {
+            if (afterCR) {
+                afterCR = false;
+                if (data[i] == '\n') {
+                    i++;
+                    continue;
+                }
+            }
+            if (state == BODY) {
+                int skipped = (int) Math.min(bodyLeft, end - i);
+                i += skipped;
+                bodyLeft -= skipped;
+                if (bodyLeft == 0) state = DONE;
+                continue;
+            }
+            byte b = data[i++];
+            if (++headSize > maxHeadSize) {
+                fail();
+            } else if (b == '\n' || b == '\r') {
+                afterCR = b == '\r';
+                endOfLine();
+            } else {
+                if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+                line[lineLength++] = b;
+            }
+        }
+        // The '\n' of the blank line that ended the head is taken if it is already here
+        if (afterCR && i < end && data[i] == '\n') {
+            afterCR = false;
+            i++;
+        }
+        return i - offset;
+    }
+
+    /**
+     * Ends the petition at the end of the bytes given so far, as if the blank line had been received.
+     * Used when the whole petition is already in memory, like on HttpUtils.parse(String).
+     */
+    public void finish() {
+        if (state == DONE) return;
+        if (state != BODY && lineLength > 0) endOfLine();
+        if (request == null) request = new HttpRequest(new String[] {""});
+        state = DONE;
+    }
+
+    /**
+     * Tells if a whole petition has been parsed (or it has been found malformed).
+     * @return true if getRequest() can be called.
+     */
+    public boolean isDone() {
+        return state == DONE;
+    }
+
+    /**
+     * Tells if part of a petition has been received, but not all of it.
+     * @return true if the petition has started to arrive and it isn't done yet.
+     */
+    public boolean isStarted() {
+        return state != DONE && (headSize > 0 || state != PETITION_LINE);
+    }
+
+    /**
+     * Tells if the head of the petition has been parsed and its body is being skipped.
+     * @return true while the body is being received.
+     */
+    public boolean isReadingBody() {
+        return state == BODY;
+    }
+
+    /**
+     * Gives the parsed petition.
+     * @return the HttpRequest, or null if it isn't done yet.
+     */
+    public HttpRequest getRequest() {
+        return state == DONE ? request : null;
+    }
+
+    /**
+     * Prepares the parser for the next petition of the connection. A '\n' still
+     * due after the "\r" of the last petition is skipped when it comes.
+     */
+    public void reset() {
+        state = PETITION_LINE;
+        request = null;
+        lineLength = 0;
+        headSize = 0;
+        bodyLeft = 0;
+    }
+
+    private void endOfLine() {
+        if (state == PETITION_LINE) {
+            // Blank lines before the petition line are ignored
+            if (lineLength > 0) {
+                request = new HttpRequest(splitPetitionLine());
+                state = HEADERS;
+            }
+        } else if (lineLength == 0) {
+            endOfHead();
+        } else {
+            addHeader();
+        }
+        lineLength = 0;
+    }
+
+    private void addHeader() {
+        int separator = -1;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == ':') {
+                separator = i;
+                break;
+            }
+        }
+        // Lines without ':' aren't headers, they are ignored
+        if (separator < 0) return;
+        if (request.getHeaderCount() >= maxHeaders) {
+            fail();
+            return;
+        }
+        int start = separator + 1;
+        int end = lineLength;
+        while (start < end && (line[start] == ' ' || line[start] == '\t')) start++;
+        while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) end--;
+        request.addHeader(new String(line, 0, separator, StandardCharsets.ISO_8859_1),
+                new String(line, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void endOfHead() {
+        state = DONE;
+        // Chunked petition bodies aren't supported, they cannot be skipped
+        if (request.getHeader("Transfer-Encoding") != null) {
+            request.setMalformed();
+            return;
+        }
+        String contentLength = request.getHeader("Content-Length");
+        if (contentLength == null) return;
+        try {
+            bodyLeft = Long.parseLong(contentLength);
+            if (bodyLeft < 0) request.setMalformed();
+            else if (bodyLeft > 0) state = BODY;
+        } catch (NumberFormatException e) {
+            request.setMalformed();
+        }
+    }
+
+    /**
+     * Splits the petition line on spaces, with the same result as String.split(" ").
+     */
+    private String[] splitPetitionLine() {
+        List<String> tokens = new ArrayList<>(3);
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++) {
+            if (i == lineLength || line[i] == ' ') {
+                tokens.add(new String(line, start, i - start, StandardCharsets.ISO_8859_1));
+                start = i + 1;
+            }
+        }
+        // Trailing empty tokens are removed, like String.split does
+        while (!tokens.isEmpty() && tokens.get(tokens.size() - 1).isEmpty()) tokens.remove(tokens.size() - 1);
+        return tokens.toArray(new String[0]);
+    }
+
+    private void fail() {
+        if (request == null) request = new HttpRequest(new String[] {""});
+        request.setMalformed();
+        state = DONE;
+    }
+}
@@ -0,0 +1,551 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents an HTTP answer ready to be sent: the header bytes
+ * followed by a list of body parts. A part is a byte array, a ByteBuffer,
+ * a region of a file or a Source that generates the body while it is sent;
+ * file regions are sent with FileChannel.transferTo, so big files go
+ * from the page cache to the socket without being copied into the heap.
+ * An HttpResponse is sent once, by one thread at a time. On the non-blocking
+ * engine a Source never makes the event loop wait: the pieces read from the
+ * disk are generated on a background Executor, and the other Sources tell
+ * when their next piece is ready.
+ * @author Miguel Blanco Godón.
+ */
+public class HttpResponse {
+    // Bytes written at most on each blocking write, so the progress of slow clients is seen
+    private static final int WRITE_SLICE = 65536;
+    private final List<Part> parts = new ArrayList<>();
+    private final byte[] head;
+    // Index of the part being sent by the non-blocking writeTo
+    private int current;
+    // True if the non-blocking writeTo stopped because a Source had no piece ready
+    private boolean waiting;
+
+    /**
+     * Creates an answer with only the header. Body parts can be added later.
+     * @param head a byte[] with the status line and the header lines, blank line included.
+     */
+    public HttpResponse(byte[] head) {
+        this.head = head;
+        parts.add(new BytesPart(head));
+    }
+
+    /**
+     * Gives the status code of the answer, read from its status line.
+     * @return an int like 200, or 0 if the header has no status line.
+     */
+    public int getStatus() {
+        // "HTTP/1.x 200 OK"
+        if (head.length < 12 || head[8] != ' ') return 0;
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            if (head[i] < '0' || head[i] > '9') return 0;
+            status = status * 10 + head[i] - '0';
+        }
+        return status;
+    }
+
+    /**
+     * Adds an in-memory part to the body.
+     * @param data a byte[] with the part, or null to add nothing.
+     * @return this HttpResponse.
+     */
+    public HttpResponse add(byte[] data) {
+        if (data != null && data.length > 0) parts.add(new BytesPart(data));
+        return this;
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer to the body, without copying them.
+     * @param data a ByteBuffer, like a slice of a memory-mapped file.
+     * @return this HttpResponse.
+     */
+    public HttpResponse add(ByteBuffer data) {
+        if (data.hasRemaining()) parts.add(new BufferPart(data));
+        return this;
+    }
+
+    /**
+     * Adds a region of a file to the body. The file is opened when it is sent.
+     * @param file the Path of the file.
+     * @param offset a long with the position of the first byte sent.
+     * @param length a long with the number of bytes sent.
+     * @return this HttpResponse.
+     */
+    public HttpResponse addFile(Path file, long offset, long length) {
+        if (length > 0) parts.add(new FilePart(file, offset, length));
+        return this;
+    }
+
+    /**
+     * Adds a part generated while the answer is sent. Its size isn't known, so
+     * the header must not have a Content-Length line.
+     * @param source the Source of the part. It is closed when it has been sent or the answer is closed.
+     * @return this HttpResponse.
+     */
+    public HttpResponse add(Source source) {
+        parts.add(new SourcePart(source));
+        return this;
+    }
+
+    /**
+     * Adds a part generated while the answer is sent, with the chunked transfer
+     * coding of HTTP/1.1: every piece goes after its size and the part ends with
+     * an empty chunk, so the connection can stay open after it. The header must
+     * have the "Transfer-Encoding: chunked" line.
+     * @param source the Source of the part. It is closed when it has been sent or the answer is closed.
+     * @return this HttpResponse.
+     */
+    public HttpResponse addChunked(Source source) {
+        return add(new ChunkedSource(source));
+    }
+
+    /**
+     * Gives the size of the answer.
+     * @return a long with the bytes of the header and the body, or -1 if a part is generated while it is sent.
+     */
+    public long length() {
+        long length = 0;
+        for (Part part : parts) {
+            if (part.length() < 0) return -1;
+            length += part.length();
+        }
+        return length;
+    }
+
+    /**
+     * Sends the whole answer on a blocking connection.
+     * @param output the OutputStream of the socket. It is flushed before sending file regions.
+     * @param channel the SocketChannel of the socket, or null if it has none.
+     * @throws IOException if the answer cannot be sent.
+     */
+    public void writeTo(OutputStream output, SocketChannel channel) throws IOException {
+        writeTo(output, channel, () -> { });
+    }
+
+    /**
+     * Sends the whole answer on a blocking connection, telling each time part of it has been written.
+     * The bytes are written in slices of at most WRITE_SLICE bytes.
+     * @param output the OutputStream of the socket. It is flushed before sending file regions.
+     * @param channel the SocketChannel of the socket, or null if it has none.
+     * @param progress the Runnable run after each slice, like one that sets the deadline of the next one.
+     * @throws IOException if the answer cannot be sent.
+     */
+    public void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException {
+        for (Part part : parts) part.writeTo(output, channel, progress);
+    }
+
+    /**
+     * Sends as much of the answer as a non-blocking channel accepts, without
+     * waiting for a Source. If it stops because a Source has no piece ready
+     * (isWaiting() tells it), ready is run when the piece can be taken, and
+     * writeTo must be called again then.
+     * @param channel a SocketChannel in non-blocking mode.
+     * @param background the Executor where the pieces read from the disk are generated.
+     * @param ready the Runnable to run, from any thread, when the piece the answer waits for is ready.
+     * @return true if the whole answer has been sent.
+     * @throws IOException if the channel cannot be written or a Source fails.
+     */
+    public boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException {
+        waiting = false;
+        while (current < parts.size()) {
+            Part part = parts.get(current);
+            if (!part.writeTo(channel, background, ready)) {
+                waiting = part.isWaiting();
+                return false;
+            }
+            part.close();
+            current++;
+        }
+        return true;
+    }
+
+    /**
+     * Tells why the last non-blocking writeTo didn't send the whole answer.
+     * @return true if it waits for a Source, false if it waits for the channel to take more bytes.
+     */
+    public boolean isWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Releases the files opened to send the answer.
+     */
+    public void close() {
+        for (Part part : parts) part.close();
+    }
+
+    /**
+     * A body generated piece by piece, as the connection can send it, so it is never whole in memory.
+     */
+    public interface Source {
+        /** Returned by poll() when the next piece isn't ready yet. */
+        ByteBuffer NOT_READY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+        /**
+         * Generates the next piece of the body, waiting for it if needed.
+         * @return a ByteBuffer with the piece, or null at the end of the body.
+         * @throws IOException if the piece cannot be generated.
+         */
+        ByteBuffer next() throws IOException;
+
+        /**
+         * Gives the next piece of the body if it is ready, without waiting for it.
+         * Sources whose pieces are made by another thread must override it.
+         * @param ready the Runnable to run, from any thread, when the piece is ready. Only used if NOT_READY is returned.
+         * @return a ByteBuffer with the piece, null at the end of the body, or NOT_READY.
+         * @throws IOException if the piece cannot be generated.
+         */
+        default ByteBuffer poll(Runnable ready) throws IOException {
+            return next();
+        }
+
+        /**
+         * Tells if next() reads from the disk, so the non-blocking engine calls it on a background thread.
+         * @return true if next() may wait for the disk.
+         */
+        default boolean isBlocking() {
+            return false;
+        }
+
+        /**
+         * Releases what the Source uses to generate the body.
+         */
+        void close();
+    }
+
+    /**
+     * Frames the pieces of a Source as HTTP/1.1 chunks. The line that ends a
+     * chunk is sent with the size of the next one.
+     */
+    private static final class ChunkedSource implements Source {
+        private final Source source;
+        private ByteBuffer pending;
+        private boolean started;
+        private boolean ended;
+
+        ChunkedSource(Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            return frame(null);
+        }
+
+        @Override
+        public ByteBuffer poll(Runnable ready) throws IOException {
+            return frame(ready);
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return source.isBlocking();
+        }
+
+        /**
+         * Gives the next chunk size line or chunk data, polling the Source unless ready is null.
+         */
+        private ByteBuffer frame(Runnable ready) throws IOException {
+            if (pending != null) {
+                ByteBuffer data = pending;
+                pending = null;
+                return data;
+            }
+            if (ended) return null;
+            ByteBuffer data;
+            do {
+                data = ready == null ? source.next() : source.poll(ready);
+                if (data == NOT_READY) return NOT_READY;
+            } while (data != null && !data.hasRemaining());
+            String separator = started ? "\r\n" : "";
+            if (data == null) {
+                ended = true;
+                return ByteBuffer.wrap((separator + "0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            started = true;
+            pending = data;
+            return ByteBuffer.wrap((separator + Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void close() {
+            source.close();
+        }
+    }
+
+    /**
+     * A piece of the answer.
+     */
+    private abstract static class Part {
+        abstract long length();
+
+        abstract void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException;
+
+        abstract boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException;
+
+        boolean isWaiting() {
+            return false;
+        }
+
+        void close() {
+
+        }
+    }
+
+    /**
+     * A piece of the answer stored on a byte array.
+     */
+    private static final class BytesPart extends Part {
+        private final ByteBuffer data;
+
+        BytesPart(byte[] data) {
+            this.data = ByteBuffer.wrap(data);
+        }
+
+        @Override
+        long length() {
+            return data.capacity();
+        }
+
+        @Override
+        void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException {
+            byte[] bytes = data.array();
+            for (int offset = 0; offset < bytes.length; offset += WRITE_SLICE) {
+                output.write(bytes, offset, Math.min(WRITE_SLICE, bytes.length - offset));
+                progress.run();
+            }
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException {
+            channel.write(data);
+            return !data.hasRemaining();
+        }
+    }
+
+    /**
+     * A piece of the answer stored on a ByteBuffer.
+     */
+    private static final class BufferPart extends Part {
+        private final ByteBuffer data;
+        private final long length;
+
+        BufferPart(ByteBuffer data) {
+            this.data = data;
+            this.length = data.remaining();
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException {
+            // The bytes buffered by the stream go before the buffer
+            output.flush();
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(output);
+            ByteBuffer slice = data.duplicate();
+            while (data.hasRemaining()) {
+                slice.limit(Math.min(data.limit(), data.position() + WRITE_SLICE));
+                data.position(data.position() + target.write(slice));
+                progress.run();
+            }
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException {
+            channel.write(data);
+            return !data.hasRemaining();
+        }
+    }
+
+    /**
+     * A piece of the answer generated by a Source.
+     */
+    private static final class SourcePart extends Part {
+        private final Source source;
+        private ByteBuffer data;
+        private volatile boolean closed;
+        private final AtomicBoolean sourceClosed = new AtomicBoolean();
+        // The piece being generated on the background Executor, for blocking Sources
+        private FutureTask<ByteBuffer> fetch;
+        private boolean waiting;
+
+        SourcePart(Source source) {
+            this.source = source;
+        }
+
+        @Override
+        long length() {
+            return -1;
+        }
+
+        @Override
+        void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException {
+            try {
+                for (ByteBuffer piece = source.next(); piece != null; piece = source.next()) {
+                    if (piece.hasArray()) {
+                        output.write(piece.array(), piece.arrayOffset() + piece.position(), piece.remaining());
+                    } else {
+                        byte[] bytes = new byte[piece.remaining()];
+                        piece.get(bytes);
+                        output.write(bytes);
+                    }
+                    progress.run();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException {
+            waiting = false;
+            while (true) {
+                if (data == null || !data.hasRemaining()) {
+                    data = piece(background, ready);
+                    if (data == Source.NOT_READY) {
+                        waiting = true;
+                        return false;
+                    }
+                    if (data == null) return true;
+                }
+                channel.write(data);
+                if (data.hasRemaining()) return false;
+            }
+        }
+
+        /**
+         * Gives the next piece without waiting. The pieces of a blocking Source are
+         * generated on the background Executor and taken on the call after ready has run.
+         */
+        private ByteBuffer piece(Executor background, Runnable ready) throws IOException {
+            if (!source.isBlocking()) return source.poll(ready);
+            if (fetch == null) {
+                FutureTask<ByteBuffer> task = new FutureTask<>(source::next) {
+                    @Override
+                    protected void done() {
+                        // The answer has been closed while the piece was generated
+                        if (closed) closeSource();
+                        else ready.run();
+                    }
+                };
+                try {
+                    background.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // The background Executor is full, the piece is generated here
+                    return source.next();
+                }
+                fetch = task;
+            }
+            if (!fetch.isDone()) return Source.NOT_READY;
+            FutureTask<ByteBuffer> done = fetch;
+            fetch = null;
+            try {
+                return done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while generating the answer");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        boolean isWaiting() {
+            return waiting;
+        }
+
+        @Override
+        void close() {
+            if (closed) return;
+            closed = true;
+            // A Source still generating a piece is closed by the task when it ends
+            if (fetch == null || fetch.isDone()) closeSource();
+        }
+
+        private void closeSource() {
+            if (sourceClosed.compareAndSet(false, true)) source.close();
+        }
+    }
+
+    /**
+     * A piece of the answer stored on a region of a file.
+     */
+    private static final class FilePart extends Part {
+        private final Path file;
+        private long position;
+        private final long length;
+        private final long end;
+        private FileChannel fileChannel;
+
+        FilePart(Path file, long offset, long length) {
+            this.file = file;
+            this.position = offset;
+            this.length = length;
+            this.end = offset + length;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        void writeTo(OutputStream output, SocketChannel channel, Runnable progress) throws IOException {
+            // The bytes buffered by the stream go before the file region
+            output.flush();
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(output);
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (position < end) {
+                    long sent = source.transferTo(position, Math.min(end - position, WRITE_SLICE), target);
+                    // The file has been truncated while it was sent
+                    if (sent <= 0 && position >= source.size()) throw new IOException("File truncated: " + file);
+                    position += sent;
+                    progress.run();
+                }
+            }
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel, Executor background, Runnable ready) throws IOException {
+            if (fileChannel == null) fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            long sent = fileChannel.transferTo(position, end - position, channel);
+            if (sent <= 0 && position >= fileChannel.size()) throw new IOException("File truncated: " + file);
+            position += sent;
+            return position >= end;
+        }
+
+        @Override
+        void close() {
+            if (fileChannel == null) return;
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            fileChannel = null;
+        }
+    }
+}
@@ -1,16 +1,38 @@
 package es.udc.redes.webserver;
-import java.io.*;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
- * This class provides functionality for an HTTP/1.0 server.
+ * This class provides functionality for an HTTP/1.0 server, with HTTP/1.1
+ * persistent connections.
  * @author Miguel Blanco Godón.
  */
 public final class HttpUtils {
+    /** The name of the server, sent on the Server header line. */
+    public static final String SERVER_NAME = System.getProperty("os.name");
     
+    // Header lines shared by every answer
+    private static final byte[] SERVER_LINE = ("Server: " + SERVER_NAME + System.lineSeparator()).getBytes();
+    private static final byte[] KEEP_ALIVE_LINE = connectionLine(true).getBytes();
+    private static final byte[] CLOSE_LINE = connectionLine(false).getBytes();
+    private static final byte[] NO_CONTENT_LINE = ("Content-Length: 0" + System.lineSeparator()).getBytes();
+    private static final byte[] RETRY_LINES = ("Retry-After: 1" + System.lineSeparator() + "Content-Length: 0" + System.lineSeparator()).getBytes();
+    private static final byte[] END_LINE = System.lineSeparator().getBytes();
+    private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    // Separator of the parts of multipart/byteranges answers
+    private static final String BOUNDARY = "webserver" + Long.toHexString(new SecureRandom().nextLong());
+    private static final byte[] CLOSING_BOUNDARY = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
     
     // The constructor is declared private to prevent instantiation. 
     private HttpUtils() {
@@ -21,50 +43,113 @@ public final class HttpUtils {
     /**
      * This method implements searches for the If-Modified-Since header on 
      * the HTTP petition.
-     * @param lines a String array where all HTTP client's petition lines are stored
+     * @param request the HttpRequest with the client's petition.
      * @return a String with the date of the If-Modified-Since line on success; null on error. 
      */
-    public static String ifModifiedSince(String[] lines) {        
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].contains("If-Modified-Since")) {
-                StringBuilder sb = new StringBuilder(lines[i]);
-                sb.delete(0, 19);
-                return sb.toString();
-            }
-        }
-        return null;
+    public static String ifModifiedSince(HttpRequest request) {        
+        return request.getHeader("If-Modified-Since");
+    }
+    
+    /**
+     * Evaluates the conditional lines of a GET or HEAD petition against the
+     * validators of a resource. If-None-Match takes precedence: when it is sent,
+     * If-Modified-Since is ignored. If-Modified-Since dates are parsed in any
+     * HTTP date format and compared with a precision of one second.
+     * @param request the HttpRequest with the client's petition.
+     * @param etag a String with the entity tag of the resource.
+     * @param lastModified a long with the modification time of the resource, in milliseconds.
+     * @return a String with the entity tag to send on a 304 Not Modified answer, or null if the resource must be sent.
+     */
+    public static String notModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return EntityTag.match(ifNoneMatch, etag);
+        long since = HttpDates.parse(ifModifiedSince(request));
+        // Invalid dates and dates in the future are ignored
+        if (since < 0 || since > System.currentTimeMillis()) return null;
+        return lastModified / 1000 <= since / 1000 ? etag : null;
     }
     
-        /**
+    /**
+     * Decides if the connection stays open after answering the petition.
+     * HTTP/1.1 connections are persistent unless "Connection: close" is sent,
+     * HTTP/1.0 ones only if "Connection: keep-alive" is sent.
+     * @param request the HttpRequest with the client's petition.
+     * @return true if the connection must be kept open.
+     */
+    public static boolean isKeepAlive(HttpRequest request) {
+        String connectionHeader = request.getHeader("Connection");
+        if ("HTTP/1.1".equals(request.getVersion())) return connectionHeader == null || !connectionHeader.equalsIgnoreCase("close");
+        return connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+    }
+    
+    /**
+     * Gives the protocol version of the answer: HTTP/1.1 petitions are answered
+     * with HTTP/1.1 (so clients keep their persistent connection), the rest with HTTP/1.0.
+     * @param petition a String array with the HTTP petition line.
+     * @return a String with the version, "HTTP/1.1" or "HTTP/1.0".
+     */
+    public static String answerVersion(String[] petition) {
+        return petition.length >= 3 && petition[2].equals("HTTP/1.1") ? "HTTP/1.1" : "HTTP/1.0";
+    }
+    
+    /**
+     * Gives the Connection header line that tells the client if the connection stays open.
+     * @param keepAlive a boolean, true if the connection is persistent.
+     * @return a String with the header line, ended with a line separator.
+     */
+    public static String connectionLine(boolean keepAlive) {
+        return (keepAlive ? "Connection: keep-alive" : "Connection: close") + System.lineSeparator();
+    }
+    
+    /**
      * This method updates log files for server management. If the logs files doesn't exist, it creates them.
+     * The record is written by the AccessLogger thread, so this method doesn't wait for the disk.
      * @param petition a String array with the HTTP 1st header line(1 word/position).
      * @param validRequest a boolean, true if a correct petition was received(200,304 HTTP codes), false with other conditions.
      * @param answer a String with the HTTP answer sent to the HTTP client.
      * @param size a long with the size of the file in bytes.
-     * @param serverThread a serverThread from the caller thread.
-     */
-    public static void updateLog(String[] petition, boolean validRequest, String answer, long size, WebServerThread serverThread) {
-        int i = 0;
-        String accessLogDir = serverThread.getConfigurationFile().getLocalServerDir() + File.separator + "access_log.txt";
-        String errorsLogDir = serverThread.getConfigurationFile().getLocalServerDir() + File.separator + "errors_log.txt";
-        String request;
-        if (validRequest) request = accessLogDir; else request = errorsLogDir;
-        try {
-            Files.write(Paths.get(request), ("Petition received:").getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-            while (i < petition.length && i < 3) {
-                Files.write(Paths.get(request), (" "+petition[i]).getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-                i++;
-            }
-            Files.write(Paths.get(request), (System.lineSeparator()+"From: "+serverThread.getCustomerSocket().getRemoteSocketAddress().toString()+System.lineSeparator()).getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            Files.write(Paths.get(request), (String.format("Date: %tc", serverThread.getReceptionTime())+System.lineSeparator()).getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            Files.write(Paths.get(request), ("Server answer: "+answer+System.lineSeparator()).getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            if (validRequest) Files.write(Paths.get(request), ("Sent resource size: "+Long.toString(size)+System.lineSeparator()).getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-            Files.write(Paths.get(request), System.lineSeparator().getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-        } catch (IOException e) {
-            System.out.println("ERROR: CANNOT WRITE LOG FILE");
-            System.err.println("Error: " + e.getMessage());
+     * @param connection the HttpConnection the petition was received on.
+     */
+    public static void updateLog(String[] petition, boolean validRequest, String answer, long size, HttpConnection connection) {
+        StringBuilder record = new StringBuilder("Petition received:");
+        for (int i = 0; i < petition.length && i < 3; i++) {
+            record.append(' ');
+            record.append(petition[i]);
         }
-        
+        record.append(System.lineSeparator());
+        record.append("From: ");
+        record.append(connection.getRemoteAddress());
+        record.append(System.lineSeparator());
+        record.append(String.format("Date: %tc", connection.getReceptionTime()));
+        record.append(System.lineSeparator());
+        record.append("Server answer: ");
+        record.append(answer);
+        record.append(System.lineSeparator());
+        if (validRequest) {
+            record.append("Sent resource size: ");
+            record.append(size);
+            record.append(System.lineSeparator());
+        }
+        record.append(System.lineSeparator());
+        AccessLogger logger = AccessLogger.getInstance();
+        // Nothing is logged until ServerConfig has configured the logger
+        if (logger != null) logger.log(validRequest, record.toString());
+    }
+    
+    /**
+     * Writes on errors_log.txt a failure that isn't the answer of a petition, like
+     * a servlet that throws an exception. It goes through the AccessLogger too.
+     * @param message a String with the description of the failure.
+     */
+    public static void errorLog(String message) {
+        StringBuilder record = new StringBuilder("Error: ");
+        record.append(message);
+        record.append(System.lineSeparator());
+        record.append(String.format("Date: %tc", new Date()));
+        record.append(System.lineSeparator());
+        record.append(System.lineSeparator());
+        AccessLogger logger = AccessLogger.getInstance();
+        if (logger != null) logger.log(false, record.toString());
     }
     
     /**
@@ -74,80 +159,398 @@ public final class HttpUtils {
      * @return a byte [] that contains both the literal part and the resource, or only the literal part (on HEAD petition or 304 code), ready to be sent.
      */
     public static byte[] convertToByte(String header, byte[] resource) {
-        int i = 0, j;
         byte [] answer;
         // Copyes both the header and the resource in the output byte array
         byte [] stringBytes = header.getBytes();
         if (resource != null) {
-             answer = new byte[stringBytes.length + resource.length];
-            for (i = 0; i < stringBytes.length; i++) answer[i] = stringBytes[i];
-            j = i;
-            for (i = j; i < answer.length; i++) answer[i] = resource[i-j];
+            answer = new byte[stringBytes.length + resource.length];
+            System.arraycopy(stringBytes, 0, answer, 0, stringBytes.length);
+            System.arraycopy(resource, 0, answer, stringBytes.length, resource.length);
         } else { answer = stringBytes;}
         
         return answer;
         
     }
     /**
-     * Reads a file from a path.
+     * Reads a file from a path. Hot files are given from the ContentCache.
      * @param path a String that contains the path to the file.
      * @return a byte[] with the file stored on it.
      */
     public static byte[] readFile(String path) {
-        File file = new File(path);
-        if (!file.exists() || !file.canRead()) return null;
-        try {
-            byte[] byteFile = Files.readAllBytes(Paths.get(path));
-            return byteFile;
-        } catch (IOException e) {
-            return null;
-        }
+        return ContentCache.getInstance().get(path);
     }
     
     /**
      * Implements HTTP GET functionality.
-     * @param petition a String array with the first line of the petition.
-     * @param lines a String array with all the petition.
-     * @param serverThread a serverThread from the caller thread.
-     * @return a byte[] with the answer, ready to be sent. 
+     * @param request the HttpRequest with the client's petition.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, ready to be sent. Files bigger than
+     * TRANSFER_THRESHOLD bytes are sent from disk without loading them in memory.
      */
-    public static byte[] getMethod(String[] petition, String[] lines, WebServerThread serverThread) {
+    public static HttpResponse getMethod(HttpRequest request, HttpConnection connection) {
+        String[] petition = request.getPetition();
         String resource = petition[1];
+        ConfFile configFile = connection.getConfigurationFile();
+        // Content coding accepted by the client, if the answer can be compressed
+        String encoding = CompressedCache.negotiate(request.getHeader("Accept-Encoding"));
         
-        // Gets the resource path from the working directory
-        StringBuilder resourcePath = new StringBuilder(serverThread.getConfigurationFile().getLocalServerDir());
-        resourcePath.append(resource);
+        // Packed files are served from the resource archive
+        HttpResponse archived = archiveMethod(request, true, connection);
+        if (archived != null) return archived;
         
         // Checks if the resource is a directory. If it is, it tryes the default file.
-        if ((new File(resourcePath.toString()).isDirectory()) && serverThread.getConfigurationFile().getAllowClause()) {
-            File tryFile = new File(resourcePath + serverThread.getConfigurationFile().getDirIndex());
-            if (tryFile.exists() && serverThread.getConfigurationFile().getAllowClause()) {resourcePath.append(serverThread.getConfigurationFile().getDirIndex());}
+        HeaderCache.Entry file = HeaderCache.getInstance().get(configFile.getLocalServerDir() + resource);
+        if (file.isDirectory() && configFile.getAllowClause()) {
+            HeaderCache.Entry indexFile = HeaderCache.getInstance().get(configFile.getLocalServerDir() + resource + configFile.getDirIndex());
+            if (indexFile.exists()) {file = indexFile;}
             else {
                 // Returns html directory index
-                String res = ConfFile.buildHTMLindexFile(serverThread.getConfigurationFile().getLocalServerDir()+petition[1]);
-                return convertToByte(ConfFile.buildDynamicAnswer(res.length()), res.getBytes()); 
+                DirectoryListing.Listing listing = DirectoryListing.getInstance().get(file.getPath());
+                if (listing == null) return new HttpResponse(header(petition, false, false, file, null, connection));
+                return listingAnswer(petition, file.getPath(), listing, encoding, connection);
+            }
+        }
+        // Conditional petitions are answered with the cached validators, without reading the file
+        if (file.isSendable()) {
+            String etag = notModified(request, file.getETag(), file.getLastModified());
+            if (etag != null) return notModifiedAnswer(petition, etag, file.getContentType(), file.getLength(), connection);
+        }
+        
+        if(resource.contains(".do")) {
+            Map<String, String> parameters = DynamicPages.parseVariables(resource);
+            StreamingServlet streaming = DynamicPages.getStreamingServlet(parameters);
+            if (streaming != null) return streamingMethod(petition, streaming, parameters, file, encoding, connection);
+            ServletCache.Page page = ServletCache.getInstance().get(parameters);
+            // Unknown servlets are answered as missing resources
+            if (page == null) return new HttpResponse(header(petition, false, false, file, null, connection));
+            if (page.getError() != null) return servletError(petition, page.getError(), connection);
+            ServletCache.Variant variant = page.variant(encoding);
+            return new HttpResponse(assemble(petition, "200 OK", variant.getHeaderLines(), connection)).add(variant.getData());
+        }
+        // Big files are streamed from disk to the socket
+        if (file.isSendable() && file.getLength() > configFile.getTransferThreshold()) {
+            Path path = Paths.get(file.getPath());
+            HttpResponse partial = rangeMethod(request, file.getContentType(), file.getLength(), file.getLastModified(), file.getETag(), path, null, connection);
+            if (partial != null) return partial;
+            return new HttpResponse(header(petition, false, false, file, null, connection)).addFile(path, 0, file.getLength());
+        }
+        // Reads the file, with the attributes its header lines were built from
+        byte[] content = file.isSendable() ? ContentCache.getInstance().get(file.getPath(), file.getLastModified(), file.getLength()) : null;
+        if (content != null && content.length != file.getLength()) {
+            // The file changed after its attributes were cached, the header must tell the length that is sent
+            HeaderCache.getInstance().invalidate(file.getPath());
+            file = HeaderCache.getInstance().get(file.getPath());
+            if (file.getLength() != content.length) content = null;
+        }
+        if (content != null) {
+            HttpResponse partial = rangeMethod(request, file.getContentType(), file.getLength(), file.getLastModified(), file.getETag(), null, ByteBuffer.wrap(content), connection);
+            if (partial != null) return partial;
+        }
+        // Textual files are sent compressed if the client accepts it, compressed once per file version
+        CompressedCache.Variant variant = content != null
+                ? CompressedCache.getInstance().get(file.getPath(), file.getLastModified(), file.getContentType(), file.getETag(), ByteBuffer.wrap(content), encoding)
+                : null;
+        if (variant != null) return new HttpResponse(header(petition, false, false, file, variant, connection)).add(variant.getData());
+        return new HttpResponse(header(petition, false, false, file, null, connection)).add(content);
+    }
+
+    /**
+     * Answers a .do petition with a StreamingServlet. A page that fits in one
+     * piece is sent as the ones of a MiniServlet, with its length and compressed
+     * if the client accepts it; a longer one is sent while the servlet writes it,
+     * chunked on HTTP/1.1 and closing the connection on HTTP/1.0. Servlets that
+     * fail, are busy or write nothing in time are answered with 500, 503 or 504.
+     */
+    private static HttpResponse streamingMethod(String [] petition, StreamingServlet servlet, Map<String, String> parameters,
+            HeaderCache.Entry file, String encoding, HttpConnection connection) {
+        ServletStream stream;
+        try {
+            stream = ServletStream.start(servlet, parameters);
+        } catch (RejectedExecutionException e) {
+            return servletError(petition, "503 Service Unavailable", connection);
+        }
+        try {
+            if (!stream.await()) return servletError(petition, "500 Internal Server Error", connection);
+        } catch (TimeoutException e) {
+            stream.close();
+            return servletError(petition, "504 Gateway Timeout", connection);
+        } catch (IOException e) {
+            stream.close();
+            return servletError(petition, "500 Internal Server Error", connection);
+        }
+        String version = answerVersion(petition);
+        if (stream.isComplete()) {
+            byte[] din = stream.getContent();
+            byte[] compressed = CompressedCache.getInstance().compressDynamic(din, encoding);
+            if (compressed != null)
+                return new HttpResponse(DynamicPages.getDynamicHeader((long) compressed.length, version, connection.isKeepAlive(), encoding).getBytes()).add(compressed);
+            return new HttpResponse(DynamicPages.getDynamicHeader((long) din.length, version, connection.isKeepAlive()).getBytes()).add(din);
+        }
+        if (version.equals("HTTP/1.1")) {
+            return new HttpResponse(DynamicPages.getStreamedHeader(version, connection.isKeepAlive()).getBytes()).addChunked(stream);
+        }
+        connection.setKeepAlive(false);
+        return new HttpResponse(DynamicPages.getStreamedHeader(version, false).getBytes()).add(stream);
+    }
+
+    /**
+     * Answers a petition the server is too busy to build now with 503, asking
+     * the client to retry a second later. Used by the NioWebServer when every
+     * dispatcher thread is busy, instead of building the answer on the event loop.
+     * @param request the HttpRequest with the client's petition.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, ready to be sent.
+     */
+    public static HttpResponse unavailable(HttpRequest request, HttpConnection connection) {
+        String[] petition = request.getPetition();
+        String answer = "503 Service Unavailable";
+        updateLog(petition, false, answer, 0, connection);
+        HttpResponse response = new HttpResponse(assemble(petition, answer, RETRY_LINES, connection));
+        ServerMetrics.getInstance().record(petition.length > 0 ? petition[0] : "", ServerMetrics.ERROR, 503, response.length(), 0);
+        return response;
+    }
+
+    /**
+     * Answers a .do petition whose servlet failed (500), was too busy (503) or
+     * too slow (504). Busy servlets ask the client to retry a second later.
+     */
+    private static HttpResponse servletError(String [] petition, String answer, HttpConnection connection) {
+        updateLog(petition, false, answer, 0, connection);
+        return new HttpResponse(assemble(petition, answer, answer.startsWith("503") ? RETRY_LINES : NO_CONTENT_LINE, connection));
+    }
+
+    /**
+     * Answers with the html index of a directory. Complete listings are sent
+     * with their cached compressed variant, if the client accepts one. The rest of
+     * the listings too big to be cached is generated while it is sent, so the
+     * answer has no length: it is chunked on HTTP/1.1 and ended by closing the
+     * connection on HTTP/1.0.
+     */
+    private static HttpResponse listingAnswer(String [] petition, String path, DirectoryListing.Listing listing, String encoding, HttpConnection connection) {
+        byte[] index = listing.getHtml();
+        if (!listing.isComplete()) {
+            if (answerVersion(petition).equals("HTTP/1.1")) {
+                // The html already generated is sent as the first chunk
+                byte[] lines = ("Content-Type: text/html" + System.lineSeparator() + "Transfer-Encoding: chunked" + System.lineSeparator()).getBytes();
+                return new HttpResponse(assemble(petition, "200 OK", lines, connection)).addChunked(prepend(index, listing.rest()));
             }
+            connection.setKeepAlive(false);
+            byte[] lines = ("Content-Type: text/html" + System.lineSeparator()).getBytes();
+            return new HttpResponse(assemble(petition, "200 OK", lines, connection)).add(index).add(listing.rest());
+        }
+        CompressedCache compressedCache = CompressedCache.getInstance();
+        if (compressedCache.isCompressible("text/html", index.length)) {
+            CompressedCache.Variant variant = compressedCache.get("listing:" + path, listing.getVersion(), "text/html",
+                    EntityTag.strong(index.length, listing.getVersion()), ByteBuffer.wrap(index), encoding);
+            if (variant != null) return new HttpResponse(assemble(petition, "200 OK", variant.getHeaderLines(), connection)).add(variant.getData());
+        } else {
+            byte[] compressed = compressedCache.compressDynamic(index, encoding);
+            if (compressed != null)
+                return new HttpResponse(ConfFile.buildDynamicAnswer(compressed.length, answerVersion(petition), connection.isKeepAlive(), encoding).getBytes()).add(compressed);
         }
-        // Checks if the If-Modified-Since is in the petition and if it matches with file's last modification
-        File file = new File(resourcePath.toString());
+        return new HttpResponse(ConfFile.buildDynamicAnswer(index.length, answerVersion(petition), connection.isKeepAlive()).getBytes()).add(index);
+    }
+
+    /**
+     * Gives a Source that sends some bytes before the pieces of another Source.
+     */
+    private static HttpResponse.Source prepend(byte[] first, HttpResponse.Source rest) {
+        return new HttpResponse.Source() {
+            private boolean sent;
+
+            @Override
+            public ByteBuffer next() throws IOException {
+                if (sent) return rest.next();
+                sent = true;
+                return ByteBuffer.wrap(first);
+            }
+
+            @Override
+            public ByteBuffer poll(Runnable ready) throws IOException {
+                if (sent) return rest.poll(ready);
+                sent = true;
+                return ByteBuffer.wrap(first);
+            }
+
+            @Override
+            public boolean isBlocking() {
+                // The first piece is already in memory, but it goes with the rest
+                return rest.isBlocking();
+            }
+
+            @Override
+            public void close() {
+                rest.close();
+            }
+        };
+    }
+
+    /**
+     * Answers a GET petition with a Range line with the requested parts of a
+     * resource: 206 Partial Content with one range, or with a multipart/byteranges
+     * body for several ranges, and 416 Range Not Satisfiable if none of them exists.
+     * The parts are taken from the file (or from the content, if it is already in
+     * memory), never loading the whole file.
+     * @param request the HttpRequest with the client's petition.
+     * @param contentType a String with the MIME type of the resource.
+     * @param length a long with the size of the resource.
+     * @param lastModified a long with the modification time of the resource.
+     * @param etag a String with the entity tag of the resource.
+     * @param file the Path of the resource, used if content is null.
+     * @param content a ByteBuffer with the whole resource, or null to read the parts from the file.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, or null if the whole resource must be sent
+     * (there is no Range line, it is ignored or the If-Range validator doesn't match).
+     */
+    public static HttpResponse rangeMethod(HttpRequest request, String contentType, long length, long lastModified,
+            String etag, Path file, ByteBuffer content, HttpConnection connection) {
+        String value = request.getHeader("Range");
+        if (value == null) return null;
+        // A range of an older version of the resource cannot be used. If-Range needs a strong validator:
+        // a strong tag, or a date only if the resource was modified before it
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            boolean current = ifRange.startsWith("\"") || ifRange.startsWith("W/")
+                    ? EntityTag.strongMatch(ifRange, etag)
+                    : !etag.startsWith("W/") && HttpDates.parse(ifRange) == lastModified / 1000 * 1000;
+            if (!current) return null;
+        }
+        List<ByteRange> ranges = ByteRange.parse(value, length, connection.getConfigurationFile().getIntOption("RANGE_MAX_COUNT", 16));
+        if (ranges == null) return null;
+        String[] petition = request.getPetition();
+        String separator = System.lineSeparator();
         
-        String ifModSince = ifModifiedSince(lines);
-        if (ifModSince!=null) {
-            if (ifModSince.equals(String.format("%tc", file.lastModified())))
-                return convertToByte(getHeader(petition,false, true, serverThread),null);
+        if (ranges.isEmpty()) {
+            String answer = "416 Range Not Satisfiable";
+            String lines = "Content-Range: bytes */" + length + separator + "Content-Length: 0" + separator;
+            updateLog(petition, false, answer, 0, connection);
+            return new HttpResponse(assemble(petition, answer, lines.getBytes(), connection));
+        }
+        String answer = "206 Partial Content";
+        StringBuilder lines = new StringBuilder();
+        List<byte[]> partHeads = new ArrayList<>(ranges.size());
+        long bodyLength = 0;
+        if (ranges.size() == 1) {
+            bodyLength = ranges.get(0).getLength();
+            lines.append("Content-Range: ").append(ranges.get(0).contentRange(length)).append(separator);
+            lines.append("Content-Type: ").append(contentType).append(separator);
+        } else {
+            // Each part is preceded by its boundary and head, the body ends with the closing boundary
+            for (ByteRange range : ranges) {
+                byte[] partHead = ("\r\n--" + BOUNDARY + "\r\nContent-Type: " + contentType + "\r\nContent-Range: "
+                        + range.contentRange(length) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                partHeads.add(partHead);
+                bodyLength += partHead.length + range.getLength();
+            }
+            bodyLength += CLOSING_BOUNDARY.length;
+            lines.append("Content-Type: multipart/byteranges; boundary=").append(BOUNDARY).append(separator);
         }
-        // Reads the file
+        lines.append("Content-Length: ").append(bodyLength).append(separator);
+        lines.append("Last-Modified: ").append(HttpDates.format(lastModified)).append(separator);
+        lines.append("ETag: ").append(etag).append(separator);
+        lines.append("Accept-Ranges: bytes").append(separator);
+        updateLog(petition, true, answer, bodyLength, connection);
         
-        byte[] resourceFile = readFile(resourcePath.toString());
+        HttpResponse response = new HttpResponse(assemble(petition, answer, lines.toString().getBytes(), connection));
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            if (!partHeads.isEmpty()) response.add(partHeads.get(i));
+            if (content != null) {
+                ByteBuffer part = content.duplicate();
+                part.position(part.position() + (int) range.getFirst());
+                part.limit(part.position() + (int) range.getLength());
+                response.add(part.slice());
+            } else {
+                response.addFile(file, range.getFirst(), range.getLength());
+            }
+        }
+        if (!partHeads.isEmpty()) response.add(CLOSING_BOUNDARY);
+        return response;
+    }
+
+    /**
+     * Answers a GET or HEAD petition from the ResourceArchive, without touching
+     * the file system. The content is sent from the memory-mapped archive. When
+     * ALLOW is off, the file is still checked (through the HeaderCache) so the
+     * resources the file system forbids get the same 403 as without archive.
+     * @param request the HttpRequest with the client's petition.
+     * @param withBody a boolean, true on GET petitions.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, or null if there is no archive or the resource isn't on it.
+     */
+    public static HttpResponse archiveMethod(HttpRequest request, boolean withBody, HttpConnection connection) {
+        String[] petition = request.getPetition();
+        ResourceArchive archive = ResourceArchive.getInstance();
+        if (archive == null) return null;
+        ConfFile configFile = connection.getConfigurationFile();
+        String resource = petition[1];
+        if (resource.endsWith("/")) {
+            if (!configFile.getAllowClause()) return null;
+            resource = resource + configFile.getDirIndex();
+        }
+        ResourceArchive.Entry entry = archive.get(resource);
+        if (entry == null) return null;
+        // Without ALLOW, what the file system forbids is answered from it with a 403
+        if (!configFile.getAllowClause()) {
+            HeaderCache.Entry file = HeaderCache.getInstance().get(configFile.getLocalServerDir() + resource);
+            if (file.exists() && (file.isDirectory() || !file.canRead())) return null;
+        }
         
-        if(resource.contains(".do")) {
-            String str = (DynamicPages.getDynamicResource(DynamicPages.parseVariables(resource)));
-            byte[] din;
-            if (str != null) din = str.getBytes();
-            else din = null;
-            return convertToByte(DynamicPages.getDynamicHeader((long) din.length),din);
+        String etag = notModified(request, entry.getETag(), entry.getLastModified());
+        if (etag != null) return notModifiedAnswer(petition, etag, entry.getContentType(), entry.getLength(), connection);
+        if (withBody) {
+            HttpResponse partial = rangeMethod(request, entry.getContentType(), entry.getLength(), entry.getLastModified(), entry.getETag(),
+                    null, archive.content(entry), connection);
+            if (partial != null) return partial;
+        }
+        String answer = "200 OK";
+        CompressedCache compressedCache = CompressedCache.getInstance();
+        CompressedCache.Variant variant = withBody
+                ? compressedCache.get("archive:" + resource, entry.getLastModified(), entry.getContentType(), entry.getETag(),
+                        archive.content(entry), CompressedCache.negotiate(request.getHeader("Accept-Encoding")))
+                : null;
+        long length = variant != null ? variant.getData().length : entry.getLength();
+        StringBuilder header = new StringBuilder(answerVersion(petition));
+        header.append(' ');
+        header.append(answer);
+        header.append(System.lineSeparator());
+        header.append("Date: ");
+        header.append(HttpDates.now());
+        header.append(System.lineSeparator());
+        header.append("Server: ");
+        header.append(SERVER_NAME);
+        header.append(System.lineSeparator());
+        header.append(connectionLine(connection.isKeepAlive()));
+        header.append("Content-Length: ");
+        header.append(length);
+        header.append(System.lineSeparator());
+        if (variant != null) {
+            header.append("Content-Encoding: ");
+            header.append(variant.getEncoding());
+            header.append(System.lineSeparator());
+        }
+        header.append("Content-Type: ");
+        header.append(entry.getContentType());
+        header.append(System.lineSeparator());
+        header.append("Last-Modified: ");
+        header.append(HttpDates.format(entry.getLastModified()));
+        header.append(System.lineSeparator());
+        header.append("ETag: ");
+        header.append(variant != null ? variant.getETag() : entry.getETag());
+        header.append(System.lineSeparator());
+        header.append("Accept-Ranges: bytes");
+        header.append(System.lineSeparator());
+        if (compressedCache.isCompressible(entry.getContentType(), entry.getLength())) {
+            header.append("Vary: Accept-Encoding");
+            header.append(System.lineSeparator());
         }
-        return convertToByte(getHeader(petition,false, false, serverThread), resourceFile);
+        header.append(System.lineSeparator());
+        updateLog(petition, true, answer, length, connection);
+        
+        HttpResponse response = new HttpResponse(header.toString().getBytes());
+        if (variant != null) response.add(variant.getData());
+        else if (withBody) response.add(archive.content(entry));
+        return response;
     }
 
     /**
@@ -155,94 +558,210 @@ public final class HttpUtils {
      * @param petition a String array with the HTTP petition line.
      * @param error a boolean value, true if the petition is incorrect.
      * @param modSince a boolean value, true if the resource hasn't been modified since last access to it.
-     * @param serverThread a serverThread from the caller server.
+     * @param connection the HttpConnection the petition was received on.
      * @return a String with the HTTP answer.
      */
-    public static String getHeader(String [] petition, boolean error, boolean modSince, WebServerThread serverThread) {
-        // Creates a String to make the header of the answer
-        StringBuilder header = new StringBuilder("HTTP/1.0 ");
+    public static String getHeader(String [] petition, boolean error, boolean modSince, HttpConnection connection) {
+        return new String(getHeaderBytes(petition, error, modSince, connection));
+    }
+    
+    /**
+     * Creates the "literal" part of a HTTP answer as bytes, ready to be sent.
+     * The header lines of the resource come from the HeaderCache.
+     * @param petition a String array with the HTTP petition line.
+     * @param error a boolean value, true if the petition is incorrect.
+     * @param modSince a boolean value, true if the resource hasn't been modified since last access to it.
+     * @param connection the HttpConnection the petition was received on.
+     * @return a byte[] with the HTTP answer.
+     */
+    public static byte[] getHeaderBytes(String [] petition, boolean error, boolean modSince, HttpConnection connection) {
+        return header(petition, error, modSince, resolve(petition, connection.getConfigurationFile()), null, connection);
+    }
+    
+    /**
+     * Implements HTTP HEAD functionality: the header of the GET answer, without body.
+     * @param request the HttpRequest with the client's petition.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, ready to be sent.
+     */
+    public static HttpResponse headMethod(HttpRequest request, HttpConnection connection) {
+        HttpResponse archived = archiveMethod(request, false, connection);
+        if (archived != null) return archived;
+        String[] petition = request.getPetition();
+        HeaderCache.Entry file = resolve(petition, connection.getConfigurationFile());
+        if (file.isSendable()) {
+            String etag = notModified(request, file.getETag(), file.getLastModified());
+            if (etag != null) return notModifiedAnswer(petition, etag, file.getContentType(), file.getLength(), connection);
+        }
+        return new HttpResponse(header(petition, false, false, file, null, connection));
+    }
+    
+    /**
+     * Gives the HeaderCache entry of the requested resource. On a directory the
+     * default file is the one sent, if it exists.
+     */
+    private static HeaderCache.Entry resolve(String [] petition, ConfFile configFile) {
+        String resourcePath = configFile.getLocalServerDir() + (petition.length >= 2 ? petition[1] : "");
+        // Tryes to access the file
+        HeaderCache.Entry file = HeaderCache.getInstance().get(resourcePath);
+        if (file.isDirectory() && configFile.getAllowClause()) {
+            HeaderCache.Entry indexFile = HeaderCache.getInstance().get(resourcePath + configFile.getDirIndex());
+            if (indexFile.exists()) file = indexFile;
+        }
+        return file;
+    }
+    
+    /**
+     * Creates a 304 Not Modified answer. It carries the entity tag the client
+     * matched and, for compressible resources, the Vary line.
+     */
+    private static HttpResponse notModifiedAnswer(String [] petition, String etag, String contentType, long length, HttpConnection connection) {
+        String separator = System.lineSeparator();
+        String lines = "ETag: " + etag + separator
+                + (CompressedCache.getInstance().isCompressible(contentType, length) ? "Vary: Accept-Encoding" + separator : "");
+        String answer = "304 Not Modified";
+        updateLog(petition, true, answer, 0, connection);
+        return new HttpResponse(assemble(petition, answer, lines.getBytes(), connection));
+    }
+    
+    /**
+     * Assembles the header of the answer from the cached lines: status line,
+     * Date, Server, Connection and the header lines of the resource, or of its
+     * compressed variant if it is sent.
+     */
+    private static byte[] header(String [] petition, boolean error, boolean modSince, HeaderCache.Entry file,
+            CompressedCache.Variant variant, HttpConnection connection) {
         String answer;
-        long size = 0;
         // Is used as a flag for the updatelog method
         boolean valid=false;
-        StringBuilder resourcePath = new StringBuilder(serverThread.getConfigurationFile().getLocalServerDir());
-        if (petition.length >=2) {
-            String resource = petition[1];
-            resourcePath.append(resource);
-        }
-        // Tryes to access the file
-        File resourceFile = new File(resourcePath.toString());
         // Depending on the parsing and the resource properties, it creates diferent headers
-        // Creates the state line
-        if (modSince) {header.append("304 Not Modified"); answer = "304 Not Modified"; valid=true;}
-        else if (error) {header.append("400 Bad Request"); answer = "400 Bad Request";}
-        else if (!resourceFile.exists()) {header.append("404 Not Found"); answer = "404 Not Found";}
-        else if (!serverThread.getConfigurationFile().getAllowClause() && (resourceFile.isDirectory() || !resourceFile.canRead())) {header.append("403 Forbidden"); answer = "403 Forbidden";}
-        else {header.append("200 OK"); answer = "200 OK"; valid=true;}
-        header.append(System.lineSeparator());
-        //Creates the header lines
-        // Date line
-        header.append(String.format("Date: %tc", new Date()));
-        header.append(System.lineSeparator());
-        // Server info line
-        header.append("Server: ");
-        header.append(System.getProperty("os.name"));
-        header.append(System.lineSeparator());
-       
-        if (resourceFile!=null && !error && !modSince) {
-            
-            // Content length and content type(if is a file with permissions
-            if (!resourceFile.isDirectory() && resourceFile.canRead()) {
-                
-                // Content length
-                header.append("Content-Length: ");
-                header.append(resourceFile.length());
-                header.append(System.lineSeparator());
-                size = resourceFile.length();
-                try {
-                // Content type
-                header.append("Content-Type: ");
-                header.append(Files.probeContentType(resourceFile.toPath()));
-                header.append(System.lineSeparator());
-                 // Last modified line
-                header.append(String.format("Last-Modified: %tc", resourceFile.lastModified()));
-                header.append(System.lineSeparator());
-                } catch (IOException e) {
-                    System.out.println("CANNOT GET FILE PATH");
-                    System.err.println("Error: " + e.getMessage());
-                }
-            }
+        if (modSince) {answer = "304 Not Modified"; valid=true;}
+        else if (error) {answer = "400 Bad Request";}
+        else if (!file.exists()) {answer = "404 Not Found";}
+        else if (!connection.getConfigurationFile().getAllowClause() && (file.isDirectory() || !file.canRead())) {answer = "403 Forbidden";}
+        else {answer = "200 OK"; valid=true;}
+        // Content length, content type and last modified lines, if it is a file with permissions
+        byte[] resourceLines = !error && !modSince ? file.getHeaderLines() : null;
+        if (modSince && file.isSendable()) resourceLines = ("ETag: " + file.getETag() + System.lineSeparator()).getBytes();
+        long size = resourceLines != null ? file.getLength() : 0;
+        if (variant != null && resourceLines != null) {
+            resourceLines = variant.getHeaderLines();
+            size = variant.getData().length;
         }
-        // Blank line (End of header)
-        header.append(System.lineSeparator());
+        // Answers without body need a zero length so persistent connections know where they end
+        if (resourceLines == null && !modSince) resourceLines = NO_CONTENT_LINE;
+        
+        byte[] header = assemble(petition, answer, resourceLines, connection);
         // It updates log files
-        updateLog(petition, valid, answer, size, serverThread);
-        return header.toString();
+        updateLog(petition, valid, answer, size, connection);
+        return header;
+    }
+    
+    /**
+     * Joins the status line, the Date, Server and Connection lines, the given
+     * header lines and the blank line that ends the header.
+     */
+    private static byte[] assemble(String [] petition, String answer, byte[] resourceLines, HttpConnection connection) {
+        byte[][] parts = {statusLine(answerVersion(petition), answer), HttpDates.dateLine(), SERVER_LINE,
+            connection.isKeepAlive() ? KEEP_ALIVE_LINE : CLOSE_LINE, resourceLines, END_LINE};
+        int length = 0;
+        for (byte[] part : parts) length += part != null ? part.length : 0;
+        byte[] header = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            if (part == null) continue;
+            System.arraycopy(part, 0, header, position, part.length);
+            position += part.length;
+        }
+        return header;
+    }
+    
+    /**
+     * Gives the status line of an answer, from the ones already built.
+     */
+    private static byte[] statusLine(String version, String answer) {
+        return STATUS_LINES.computeIfAbsent(version + ' ' + answer, line -> (line + System.lineSeparator()).getBytes());
     }
     
     /**
      * It separates the string and checks if it's syntax is ok and gives the HTTP answer.
+     * The string is parsed with HttpRequestParser, as if it had been received from a socket.
      * @param str a String with the HTTP petition.
-     * @param serverThread a serverThread from the caller thread.
-     * @return a byte[] with the HTTP answer.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the HTTP answer.
+     */
+    public static HttpResponse parse(String str, HttpConnection connection) {
+        HttpRequestParser parser = new HttpRequestParser(connection.getConfigurationFile());
+        byte[] data = str.getBytes(StandardCharsets.ISO_8859_1);
+        parser.feed(data, 0, data.length);
+        parser.finish();
+        return parse(parser.getRequest(), connection);
+    }
+    
+    /**
+     * It checks if the petition syntax is ok and gives the HTTP answer.
+     * It also tells the connection if it has to be kept open after the answer.
+     * @param request the HttpRequest parsed from the client's petition.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the HTTP answer.
      */
-    public static byte[] parse(String str, WebServerThread serverThread) {
-        //System.out.println(str);
-        // Separates petition in lines
-        String[] lines = str.split("\\r?\\n|\\r");
-        // Separates the string in tokens
-        String[] tokens = lines[0].split(" ");
-        //ifModifiedSince(lines,false);
-        // if empty return 400 BAD REQUEST HTML ERROR
-        if (tokens.length < 3) return getHeader(tokens, true, false, serverThread).getBytes();
-        else {
+    public static HttpResponse parse(HttpRequest request, HttpConnection connection) {
+        long start = System.nanoTime();
+        String[] tokens = request.getPetition();
+        HttpResponse answer = null;
+        int handler = ServerMetrics.ERROR;
+        // if empty or malformed return 400 BAD REQUEST HTML ERROR
+        connection.setKeepAlive(tokens.length >= 3 && !request.isMalformed() && isKeepAlive(request));
+        if (tokens.length < 3 || request.isMalformed()) answer = new HttpResponse(getHeaderBytes(tokens, true, false, connection));
+        else if ((tokens[0].equals("GET") || tokens[0].equals("HEAD")) && ServerMetrics.getInstance().isStatusPage(tokens[1])) {
+            // The status page is answered before looking for a resource
+            handler = ServerMetrics.STATUS;
+            answer = statusMethod(request, connection);
+        } else {
             // Gives the answer depending on the request
             switch (tokens[0]) {
-                case "GET" : return getMethod(tokens, lines, serverThread);
-                case "HEAD" : return getHeader(tokens,false, false, serverThread).getBytes();
+                case "GET" : handler = handlerOf(tokens[1]); answer = getMethod(request, connection); break;
+                case "HEAD" : handler = handlerOf(tokens[1]); answer = headMethod(request, connection); break;
             }
         }
-        return getHeader(tokens,true, false, serverThread).getBytes();
+        if (answer == null) {
+            connection.setKeepAlive(false);
+            answer = new HttpResponse(getHeaderBytes(tokens,true, false, connection));
+        }
+        long elapsed = System.nanoTime() - start;
+        ServerMetrics.getInstance().record(tokens.length > 0 ? tokens[0] : "", handler, answer.getStatus(), answer.length(), elapsed);
+        // Servlets have their own limits, their latency doesn't close the server
+        if (handler == ServerMetrics.STATIC || handler == ServerMetrics.DIRECTORY) AdmissionControl.getInstance().record(elapsed);
+        return answer;
+    }
+    
+    /**
+     * Gives the kind of handler that answers a resource, to count its latency.
+     */
+    private static int handlerOf(String resource) {
+        if (resource.contains(".do")) return ServerMetrics.SERVLET;
+        return resource.endsWith("/") ? ServerMetrics.DIRECTORY : ServerMetrics.STATIC;
+    }
+    
+    /**
+     * Answers with the counters of ServerMetrics: as text, or in the Prometheus
+     * text format if the query is "?auto". The answer is never cached.
+     * @param request the HttpRequest with the client's petition.
+     * @param connection the HttpConnection the petition was received on.
+     * @return an HttpResponse with the answer, ready to be sent.
+     */
+    public static HttpResponse statusMethod(HttpRequest request, HttpConnection connection) {
+        String[] petition = request.getPetition();
+        boolean machine = petition[1].endsWith("?auto");
+        byte[] report = ServerMetrics.getInstance().report(machine).getBytes(StandardCharsets.UTF_8);
+        String separator = System.lineSeparator();
+        String lines = "Content-Length: " + report.length + separator
+                + "Content-Type: " + (machine ? "text/plain; version=0.0.4" : "text/plain; charset=UTF-8") + separator
+                + "Cache-Control: no-cache" + separator;
+        String answer = "200 OK";
+        updateLog(petition, true, answer, report.length, connection);
+        HttpResponse response = new HttpResponse(assemble(petition, answer, lines.getBytes(), connection));
+        return petition[0].equals("HEAD") ? response : response.add(report);
     }
     
 }
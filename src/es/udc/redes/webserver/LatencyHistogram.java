@@ -0,0 +1,89 @@
+package es.udc.redes.webserver;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts latencies on buckets that are about 3% wide, so every
+ * thread can record on it without locks and the percentiles are read without
+ * keeping the values. Values are recorded in microseconds; every bucket is a
+ * LongAdder, so threads recording the same latency don't contend on one counter.
+ * @author Miguel Blanco Godón.
+ */
+public final class LatencyHistogram {
+    // Values below 32 get one bucket each, then 16 buckets per power of two
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + 36 * SUB_BUCKETS;
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    /**
+     * Records a latency.
+     * @param nanos a long with the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[index(micros)].increment();
+        total.increment();
+        sum.add(micros);
+    }
+
+    /**
+     * Gives the number of latencies recorded.
+     * @return a long with the count.
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Gives the sum of the latencies recorded.
+     * @return a long with the sum in microseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Gives a percentile of the latencies recorded. As recording doesn't stop
+     * while it is read, the result is approximate.
+     * @param percentile a double from 0 to 100, like 99.9.
+     * @return a long with the highest latency of the bucket of the percentile, in microseconds; 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += snapshot[i] = counts[i].sum();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return value(i);
+        }
+        return value(BUCKETS - 1);
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        // The 4 bits after the highest one choose the bucket inside its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return Math.min(2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS, BUCKETS - 1);
+    }
+
+    /**
+     * Gives the highest value of a bucket.
+     */
+    private static long value(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long first = (long) ((index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return first + (1L << shift) - 1;
+    }
+}
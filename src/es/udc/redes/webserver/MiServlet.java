@@ -3,7 +3,7 @@ package es.udc.redes.webserver;
 import java.util.Map;
 
 
-public class MiServlet implements MiniServlet {
+public class MiServlet implements MiniServlet, CacheableServlet {
 	
         /* Para el correcto funcionamiento es necesario un constructor 
 	 * sin parámetros y público */
@@ -0,0 +1,36 @@
+package es.udc.redes.webserver;
+
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * This class lets a MiniServlet be used where a StreamingServlet is expected,
+ * writing the String it returns. HttpUtils calls the MiniServlet directly
+ * (getServlet()) on the connection thread, as its whole page is in memory anyway.
+ * @author Miguel Blanco Godón.
+ */
+public final class MiniServletAdapter implements StreamingServlet {
+    private final MiniServlet servlet;
+
+    /**
+     * Creates the adapter of a servlet.
+     * @param servlet the MiniServlet to adapt.
+     */
+    public MiniServletAdapter(MiniServlet servlet) {
+        this.servlet = servlet;
+    }
+
+    /**
+     * Gives the adapted servlet.
+     * @return the MiniServlet.
+     */
+    public MiniServlet getServlet() {
+        return servlet;
+    }
+
+    @Override
+    public void doGet(Map<String, String> parameters, Writer output) throws Exception {
+        String page = servlet.doGet(parameters);
+        if (page != null) output.write(page);
+    }
+}
@@ -0,0 +1,274 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class keeps the state of one non-blocking client connection of the
+ * NioWebServer: the parser of the petition being received and the
+ * HttpResponse that is still being sent. Persistent connections answer
+ * their pipelined petitions in the order they were received.
+ * It is only used from the event loop thread that owns its SelectionKey, except
+ * while a petition is answered on a dispatcher thread: the connection reads
+ * nothing meanwhile and the answer is given back to the event loop to be sent.
+ * The event loop only builds the answers that come from the caches; .do
+ * petitions, and the ones that would read the disk, compress or wait for other
+ * threads (NioWebServer.mayBlock), go to a dispatcher thread. When every
+ * dispatcher is busy the client gets a 503 answer.
+ * The same happens while an answer waits for a piece of its body: pieces
+ * read from the disk are generated on a dispatcher thread, and the event loop
+ * is woken up when the piece is ready.
+ * @author Miguel Blanco Godón.
+ */
+public class NioConnection implements HttpConnection {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Executor loop;
+    private final Executor dispatcher;
+    // The configuration of the current petition, taken from ServerConfig
+    private ConfFile configFile;
+    private Date receptionTime;
+    private final ByteBuffer input = ByteBuffer.allocate(8192);
+    private final HttpRequestParser parser;
+    private HttpResponse output;
+    private boolean keepAlive;
+    // Number of petitions answered on this connection
+    private int answered;
+    // Closes the connection, on the event loop, when the client takes too long
+    private final ConnectionDeadline deadline;
+    // Run by the body of the answer, from any thread, when the piece it waits for is ready
+    private final Runnable pieceReady;
+
+    /**
+     * This is the NioConnection constructor.
+     * @param channel the SocketChannel of the client, already in non-blocking mode.
+     * @param key the SelectionKey of the channel on the event loop selector.
+     * @param configFile a ConfFile, where some server info is.
+     * @param loop the Executor that runs tasks on the event loop thread.
+     * @param dispatcher the Executor where .do petitions are answered.
+     */
+    public NioConnection(SocketChannel channel, SelectionKey key, ConfFile configFile, Executor loop, Executor dispatcher) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.dispatcher = dispatcher;
+        this.configFile = configFile;
+        this.parser = new HttpRequestParser(configFile);
+        this.deadline = new ConnectionDeadline(() -> loop.execute(this::close));
+        this.pieceReady = () -> loop.execute(this::onPieceReady);
+        ServerMetrics.getInstance().connectionOpened();
+        deadline.watch(parser, true, configFile);
+    }
+
+    @Override
+    public ConfFile getConfigurationFile() {
+        return configFile;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public Date getReceptionTime() {
+        return receptionTime;
+    }
+
+    @Override
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets if the connection stays open after answering the current petition.
+     * The last petition allowed by KEEP_ALIVE_MAX always closes the connection.
+     * @param keepAlive a boolean, true to keep the connection open.
+     */
+    @Override
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive && answered + 1 < configFile.getKeepAliveMax();
+    }
+
+    /**
+     * Reads what the client has sent and answers the complete petitions received.
+     * @throws IOException if the channel cannot be read or written.
+     */
+    public void onReadable() throws IOException {
+        if (channel.read(input) < 0) {
+            close();
+            return;
+        }
+        answerPetitions();
+    }
+
+    /**
+     * Sends as much of the pending answer as the socket accepts. When the whole
+     * answer has been sent, the next pipelined petition is answered or, if the
+     * connection isn't persistent, it is closed.
+     * @throws IOException if the channel cannot be written.
+     */
+    public void onWritable() throws IOException {
+        if (writeAnswer()) answerPetitions();
+    }
+
+    /**
+     * Goes on with the pending answer when the piece of its body it was waiting for is ready, on the event loop thread.
+     */
+    private void onPieceReady() {
+        // The connection has been closed, or the wake up is late and the answer already went on
+        if (output == null || !output.isWaiting() || !channel.isOpen()) return;
+        try {
+            if (writeAnswer()) answerPetitions();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Answers, one by one and in order, the petitions whose head has arrived.
+     * Only one answer is pending at a time, so pipelined answers are never reordered.
+     * @throws IOException if the channel cannot be written.
+     */
+    private void answerPetitions() throws IOException {
+        while (output == null && channel.isOpen()) {
+            input.flip();
+            int used = parser.feed(input.array(), input.position(), input.remaining());
+            input.position(input.position() + used);
+            // Keeps the bytes of the next pipelined petition, if any
+            input.compact();
+            if (!parser.isDone()) {
+                key.interestOps(SelectionKey.OP_READ);
+                deadline.watch(parser, answered == 0, configFile);
+                return;
+            }
+            deadline.cancel();
+            this.receptionTime = new Date();
+            // Answers with the configuration in use when the petition arrived
+            this.configFile = ServerConfig.current();
+            HttpResponse answer = answer(parser.getRequest());
+            // The answer is being built on a dispatcher thread
+            if (answer == null) return;
+            send(answer);
+        }
+    }
+
+    /**
+     * Builds the answer of a petition on the event loop if it can be done without waiting.
+     * @return the HttpResponse, or null if the petition has been given to a dispatcher thread.
+     */
+    private HttpResponse answer(HttpRequest request) {
+        String uri = request.getUri();
+        // Servlets may be slow, they are always run away from the event loop
+        if (uri == null || !uri.contains(".do")) {
+            try {
+                return HttpUtils.parse(request, this);
+            } catch (NioWebServer.WouldBlockException e) {
+                // A cache miss, the answer is built again on a dispatcher thread
+            }
+        }
+        if (dispatch(request)) return null;
+        // Building it here would stop every connection of the loop
+        return HttpUtils.unavailable(request, this);
+    }
+
+    /**
+     * Answers a petition on a dispatcher thread, so the event loop goes on with
+     * the other connections while the servlet runs or the disk is read.
+     * @return false if every dispatcher is busy.
+     */
+    private boolean dispatch(HttpRequest request) {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    HttpResponse answer = HttpUtils.parse(request, this);
+                    loop.execute(() -> onAnswered(answer));
+                } catch (RuntimeException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    loop.execute(this::close);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        key.interestOps(0);
+        return true;
+    }
+
+    /**
+     * Sends the answer of a dispatched petition, on the event loop thread.
+     */
+    private void onAnswered(HttpResponse answer) {
+        if (!channel.isOpen()) {
+            answer.close();
+            return;
+        }
+        try {
+            if (send(answer)) answerPetitions();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Starts sending the answer of the current petition.
+     * @return true if the whole answer has been sent and the connection is still open.
+     */
+    private boolean send(HttpResponse answer) throws IOException {
+        output = answer;
+        answered++;
+        parser.reset();
+        return writeAnswer();
+    }
+
+    /**
+     * Writes the pending answer.
+     * @return true if the whole answer has been sent and the connection is still open.
+     * @throws IOException if the channel cannot be written.
+     */
+    private boolean writeAnswer() throws IOException {
+        boolean sent = output.writeTo(channel, dispatcher, pieceReady);
+        if (!sent && output.isWaiting()) {
+            // Nothing to send until the piece is ready, onPieceReady goes on then
+            key.interestOps(0);
+            deadline.cancel();
+            return false;
+        }
+        if (!sent) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            deadline.watchWrite(configFile);
+            return false;
+        }
+        output = null;
+        if (!keepAlive) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connection and cancels its key. It may be called again on a closed connection.
+     */
+    public void close() {
+        deadline.cancel();
+        if (output != null) output.close();
+        if (channel.isOpen()) {
+            ServerMetrics.getInstance().connectionClosed();
+            AdmissionControl.getInstance().release();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
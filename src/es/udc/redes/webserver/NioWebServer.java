@@ -0,0 +1,235 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class implements a non-blocking HTTP/1.0 server core. An acceptor
+ * thread accepts the connections AdmissionControl lets in and gives them, round robin, to a fixed
+ * number of event loops (NIO_LOOPS line of server_properties.txt, one per core
+ * by default). Each event loop handles all its connections with a Selector,
+ * so idle or slow clients don't hold a thread; the ones that miss their
+ * ConnectionDeadline are closed. An event loop only builds the answers it
+ * can take from the caches: the ones that must read the disk, compress or
+ * wait for other threads, and the .do petitions, are answered on dispatcher
+ * threads, up to SERVLET_THREADS + SERVLET_QUEUE_SIZE at once, so a slow disk or
+ * servlet doesn't stop the other connections of its loop.
+ * The answers are built with the same HttpUtils GET/HEAD logic used by WebServerThread.
+ * @author Miguel Blanco Godón.
+ */
+public class NioWebServer {
+    private final ConfFile configFile;
+    private final EventLoop[] loops;
+    private final ThreadPoolExecutor dispatchers;
+
+    /**
+     * This is the NioWebServer constructor. It opens one Selector per event loop.
+     * @param configFile a ConfFile, where some server info is.
+     * @throws IOException if a Selector cannot be opened.
+     */
+    public NioWebServer(ConfFile configFile) throws IOException {
+        this.configFile = configFile;
+        this.loops = new EventLoop[configFile.getIntOption("NIO_LOOPS", Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < loops.length; i++) loops[i] = new EventLoop(Selector.open());
+        // Every dispatcher waits for a servlet, there can't be more than the ServletExecutor accepts
+        int dispatchLimit = configFile.getIntOption("SERVLET_THREADS", 16) + configFile.getIntOption("SERVLET_QUEUE_SIZE", 64);
+        this.dispatchers = new ThreadPoolExecutor(0, dispatchLimit, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new DispatcherFactory());
+    }
+
+    /**
+     * Tells if the calling thread is an event loop, where nothing may wait for the disk or for other threads.
+     * @return true on the event loop threads of a NioWebServer.
+     */
+    public static boolean isEventLoop() {
+        return Thread.currentThread() instanceof LoopThread;
+    }
+
+    /**
+     * Called before a step that may wait for the disk or for other threads. On an
+     * event loop it stops building the answer, and the NioConnection builds it
+     * again on a dispatcher thread. It does nothing on other threads.
+     * @throws WouldBlockException on an event loop thread.
+     */
+    public static void mayBlock() {
+        if (isEventLoop()) throw WouldBlockException.INSTANCE;
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread, forever.
+     * A connection that cannot be accepted is logged and the next ones are accepted.
+     * The event loops are daemon threads, so the server stops when the acceptor does.
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public void serve() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(configFile.getPort()), configFile.getIntOption("ACCEPT_BACKLOG", 128));
+            for (int i = 0; i < loops.length; i++) {
+                Thread loop = new LoopThread(loops[i], "webserver-nio-" + (i + 1));
+                loop.start();
+            }
+            int next = 0;
+            while (true) {
+                // Waits for connections
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (!serverChannel.isOpen()) throw e;
+                    WebServer.acceptFailed(e);
+                    continue;
+                }
+                // Above the connection limit the client gets a 503 at once
+                if (!AdmissionControl.getInstance().tryAcquire()) {
+                    AdmissionControl.reject(channel);
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * An event loop: one thread and one Selector for many connections.
+     */
+    private final class EventLoop implements Runnable, Executor {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Gives a new connection to this loop. Called from the acceptor thread.
+         * @param channel the SocketChannel of the accepted client.
+         */
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on this loop, like sending an answer built on a dispatcher thread
+         * or closing a connection whose deadline has passed.
+         * @param task the Runnable to run on the loop thread.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+                    runTasks();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    // The head and the body of an answer are separate writes, Nagle would hold
+                    // the body until the client acknowledges the head
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key, ServerConfig.current(), this, dispatchers));
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    AdmissionControl.getInstance().release();
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        System.err.println("Error: " + ex.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) connection.onReadable();
+                if (key.isValid() && key.isWritable()) connection.onWritable();
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * The daemon thread of an event loop, so isEventLoop() can tell it.
+     */
+    private static final class LoopThread extends Thread {
+        LoopThread(Runnable loop, String name) {
+            super(loop, name);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Thrown by mayBlock() on an event loop. It has no stack trace, it is only a signal.
+     */
+    public static final class WouldBlockException extends RuntimeException {
+        private static final WouldBlockException INSTANCE = new WouldBlockException();
+
+        private WouldBlockException() {
+            super("The answer cannot be built on the event loop", null, false, false);
+        }
+    }
+
+    /**
+     * Names the dispatcher threads so they can be told apart on a thread dump.
+     */
+    private static final class DispatcherFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread dispatcher = new Thread(task, "webserver-nio-dispatch-" + count.incrementAndGet());
+            dispatcher.setDaemon(true);
+            return dispatcher;
+        }
+    }
+}
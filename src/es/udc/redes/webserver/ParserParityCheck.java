@@ -0,0 +1,328 @@
+package es.udc.redes.webserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * This class checks HttpRequestParser and HttpUtils.parse against the way the
+ * server read petitions before the incremental parser, when the head was a
+ * String split in lines with "\r?\n|\r" and the petition line split on spaces.
+ * That old reading is kept here as the reference, with the limits the parser
+ * added (HEADER_MAX_SIZE, HEADER_MAX_COUNT and the body framing).
+ * It generates random GET, HEAD, other method, garbage, oversized and badly
+ * framed petitions for the resources of a server directory, and checks for each one:
+ * - that the parser, given the bytes in random pieces, finds the petition line,
+ *   the header values and the errors of the reference;
+ * - that HttpUtils.parse gives the same answer (Date line excluded) for the
+ *   whole petition as a String and for the parsed pieces, with the status of
+ *   the reference: 400 for bad petitions and for methods other than GET and
+ *   HEAD, 200 for files and directories and 404 for missing resources, and the
+ *   keep-alive decision of the reference;
+ * - that the answer of a HEAD petition of a file has the head of the same GET
+ *   petition. Directories are left out: HEAD doesn't build their listing, and
+ *   answers them without its length, as the server always did.
+ * The server directory is copied to a temporary one first, like HotPathBenchmark does.
+ * Run it after changing the parser or HttpUtils.parse: it prints the first
+ * differences found and exits with status 1, giving the seed to repeat the run.
+ * @author Miguel Blanco Godón.
+ */
+public final class ParserParityCheck {
+    private static final String[] METHODS = {"POST", "PUT", "DELETE", "OPTIONS", "get", "Head"};
+    private static final String[] HEADERS = {"Host: localhost", "User-Agent: parity-check", "Accept: */*",
+            "Connection: keep-alive", "Connection: close", "connection: Keep-Alive", "Accept-Language: gl, es",
+            "If-Modified-Since: Sat, 29 Oct 1994 19:43:31 GMT", "X-Forwarded-For: 10.0.0.1", "Cache-Control: no-cache",
+            "A line without a separator", "X-Empty:"};
+    private static final String[] NAMES = {"Host", "User-Agent", "Accept", "Connection", "Accept-Language",
+            "If-Modified-Since", "X-Forwarded-For", "Cache-Control", "X-Empty", "Content-Length", "Transfer-Encoding"};
+    private static final int MAX_REPORTED = 10;
+    private static final String[] LINE_ENDS = {"\r\n", "\n", "\r"};
+    private static final Pattern LINE_END = Pattern.compile("\\r?\\n|\\r");
+
+    private final ConfFile configFile;
+    private final HotPathBenchmark.Connection connection;
+    private final Random random;
+    private final List<String> files = new ArrayList<>();
+    private final List<String> directories = new ArrayList<>();
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private final List<String> differences = new ArrayList<>();
+
+    /**
+     * Runs the check.
+     * @param argv a String array with the server directory (p1/resources by
+     * default), the number of petitions (3000 by default) and the seed of the generator.
+     * @throws IOException if the directory cannot be copied.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length > 3) {
+            System.err.println("Format: ParserParityCheck [<directory>] [<petitions>] [<seed>]");
+            System.exit(-1);
+        }
+        Path source = Paths.get(argv.length > 0 ? argv[0] : "p1/resources");
+        int count = argv.length > 1 ? Integer.parseInt(argv[1]) : 3000;
+        long seed = argv.length > 2 ? Long.parseLong(argv[2]) : System.nanoTime();
+        Path directory = Files.createTempDirectory("webserver-parity");
+        int failed;
+        try {
+            HotPathBenchmark.copy(source, directory);
+            ParserParityCheck check = new ParserParityCheck(directory, seed);
+            for (int i = 0; i < count && check.differences.size() < MAX_REPORTED; i++) check.check(check.petition());
+            failed = check.differences.size();
+            for (String difference : check.differences) System.out.println(difference);
+        } finally {
+            AccessLogger.getInstance().shutdown();
+            HotPathBenchmark.delete(directory);
+        }
+        System.out.println((failed == 0 ? "OK: " + count + " petitions" : "FAILED") + ", seed " + seed);
+        if (failed > 0) System.exit(1);
+    }
+
+    private ParserParityCheck(Path directory, long seed) throws IOException {
+        this.configFile = HotPathBenchmark.configure(directory);
+        this.connection = new HotPathBenchmark.Connection(configFile);
+        this.random = new Random(seed);
+        this.maxHeadSize = configFile.getIntOption("HEADER_MAX_SIZE", 16384);
+        this.maxHeaders = configFile.getIntOption("HEADER_MAX_COUNT", 100);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String resource = "/" + directory.relativize(path).toString().replace('\\', '/');
+                // The log files change while the check runs
+                if (resource.endsWith("_log.txt")) continue;
+                if (Files.isDirectory(path)) {
+                    directories.add(resource.endsWith("/") ? resource : resource + "/");
+                } else {
+                    files.add(resource);
+                    // Just copied files get weak validators for a second, which would change the answers
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 3600000));
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates a petition, with its body if it has one.
+     */
+    private String petition() {
+        String end = LINE_ENDS[random.nextInt(LINE_ENDS.length)];
+        StringBuilder petition = new StringBuilder();
+        int kind = random.nextInt(20);
+        String method = kind < 12 ? (random.nextBoolean() ? "GET" : "HEAD") : METHODS[random.nextInt(METHODS.length)];
+        String version = random.nextInt(3) == 0 ? "HTTP/1.0" : "HTTP/1.1";
+        if (kind == 14) {
+            // Petition lines with too few or too many tokens, or extra spaces
+            String[] lines = {method, method + " " + resource(), method + "  " + resource() + " " + version,
+                    method + " " + resource() + " " + version + " extra", method + " " + resource() + " " + version + " "};
+            petition.append(lines[random.nextInt(lines.length)]).append(end);
+        } else if (kind == 15) {
+            petition.append(garbage()).append(end);
+        } else {
+            petition.append(method).append(' ').append(resource()).append(' ').append(version).append(end);
+        }
+        int headers = random.nextInt(6);
+        // Far from the limits, so the reference doesn't depend on how the bytes are counted
+        if (kind == 16) headers = maxHeaders + 10 + random.nextInt(10);
+        for (int i = 0; i < headers; i++) petition.append(header()).append(end);
+        if (kind == 17) petition.append("X-Padding: ").append(garbage(maxHeadSize + 1000)).append(end);
+        String body = "";
+        if (kind == 18) {
+            String[] framings = {"Transfer-Encoding: chunked", "Content-Length: -1", "Content-Length: ten", "Content-Length:"};
+            petition.append(framings[random.nextInt(framings.length)]).append(end);
+        } else if (kind == 19 || kind < 12 && random.nextInt(8) == 0) {
+            body = garbage(1 + random.nextInt(200));
+            petition.append("Content-Length: ").append(body.length()).append(end);
+        }
+        return petition.append(end).append(body).toString();
+    }
+
+    private String resource() {
+        int kind = random.nextInt(10);
+        if (kind < 6 && !files.isEmpty()) return files.get(random.nextInt(files.size()));
+        if (kind < 8 && !directories.isEmpty()) return directories.get(random.nextInt(directories.size()));
+        return "/missing-" + random.nextInt(1000) + (random.nextBoolean() ? ".html" : "/");
+    }
+
+    private String header() {
+        String header = HEADERS[random.nextInt(HEADERS.length)];
+        int separator = header.indexOf(':');
+        if (separator < 0) return header;
+        String name = header.substring(0, separator);
+        if (random.nextInt(4) == 0) name = random.nextBoolean() ? name.toLowerCase() : name.toUpperCase();
+        String[] spaces = {"", " ", "  ", "\t", " \t"};
+        return name + ":" + spaces[random.nextInt(spaces.length)] + header.substring(separator + 1).trim()
+                + spaces[random.nextInt(spaces.length)];
+    }
+
+    private String garbage() {
+        return garbage(1 + random.nextInt(40));
+    }
+
+    /**
+     * Gives printable ASCII characters, spaces included.
+     */
+    private String garbage(int length) {
+        StringBuilder garbage = new StringBuilder(length);
+        for (int i = 0; i < length; i++) garbage.append((char) (' ' + random.nextInt(95)));
+        return garbage.toString();
+    }
+
+    /**
+     * Checks one petition against the reference, writing the differences found.
+     */
+    private void check(String petition) {
+        Reference reference = new Reference(petition);
+        byte[] data = petition.getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest request = feed(data);
+        if (request.isMalformed() != reference.malformed) {
+            report(petition, "malformed " + request.isMalformed() + ", reference " + reference.malformed);
+            return;
+        }
+        if (!reference.malformed) {
+            if (!String.join("|", request.getPetition()).equals(String.join("|", reference.tokens)))
+                report(petition, "petition line " + String.join("|", request.getPetition()));
+            for (String name : NAMES) {
+                String value = request.getHeader(name);
+                String expected = reference.header(name);
+                if (value == null ? expected != null : !value.equals(expected))
+                    report(petition, name + " is \"" + value + "\", reference \"" + expected + "\"");
+            }
+        }
+
+        String whole = answer(HttpUtils.parse(petition, connection));
+        boolean keepAlive = connection.isKeepAlive();
+        String pieces = answer(HttpUtils.parse(request, connection));
+        if (!whole.equals(pieces)) report(petition, "the answer changes when the petition comes in pieces, " + difference(whole, pieces));
+        int status = status(whole);
+        int expected = reference.status();
+        if (status != expected) report(petition, "status " + status + ", reference " + expected);
+        boolean expectedKeepAlive = expected != 400 && reference.keepAlive();
+        if (keepAlive != expectedKeepAlive) report(petition, "keep-alive " + keepAlive + ", reference " + expectedKeepAlive);
+        if (expected != 400 && reference.tokens[0].equals("HEAD") && files.contains(reference.tokens[1])) {
+            String get = answer(HttpUtils.parse("GET" + petition.substring(4), connection));
+            String head = get.substring(0, get.indexOf("\r\n\r\n") + 4);
+            if (!whole.equals(head)) report(petition, "the head of the HEAD answer isn't the head of the GET answer, " + difference(whole, head));
+        }
+    }
+
+    /**
+     * Parses a petition given in pieces of random size.
+     */
+    private HttpRequest feed(byte[] data) {
+        HttpRequestParser parser = new HttpRequestParser(configFile);
+        int position = 0;
+        while (position < data.length && !parser.isDone()) {
+            int piece = 1 + random.nextInt(Math.min(64, data.length - position));
+            position += parser.feed(data, position, piece);
+        }
+        parser.finish();
+        return parser.getRequest();
+    }
+
+    /**
+     * Gives the bytes of an answer as text, without its Date line.
+     */
+    private static String answer(HttpResponse answer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            answer.writeTo(output, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            answer.close();
+        }
+        String text = output.toString(StandardCharsets.ISO_8859_1).replace("\r\n", "\n").replace("\n", "\r\n");
+        return text.replaceFirst("\r\nDate: [^\r]*", "");
+    }
+
+    /**
+     * Gives the first line that differs between two answers.
+     */
+    private static String difference(String answer, String other) {
+        String[] lines = answer.split("\r\n", -1);
+        String[] otherLines = other.split("\r\n", -1);
+        for (int i = 0; i < Math.min(lines.length, otherLines.length); i++) {
+            if (!lines[i].equals(otherLines[i])) return "\"" + lines[i] + "\" against \"" + otherLines[i] + "\"";
+        }
+        return lines.length + " lines against " + otherLines.length;
+    }
+
+    private static int status(String answer) {
+        String[] tokens = answer.split(" ", 3);
+        return tokens.length > 1 ? Integer.parseInt(tokens[1]) : -1;
+    }
+
+    private void report(String petition, String difference) {
+        if (differences.size() < MAX_REPORTED)
+            differences.add(difference + " on:\n  " + petition.replace("\r", "\\r").replace("\n", "\\n\n  "));
+    }
+
+    /**
+     * A petition read the way the server read them before HttpRequestParser.
+     */
+    private final class Reference {
+        private final String[] lines;
+        private final String[] tokens;
+        private final boolean malformed;
+
+        Reference(String petition) {
+            // The head goes until the first blank line
+            int end = 0;
+            int headerCount = 0;
+            Matcher lineEnd = LINE_END.matcher(petition);
+            while (end < petition.length()) {
+                boolean found = lineEnd.find(end);
+                String line = petition.substring(end, found ? lineEnd.start() : petition.length());
+                // Lines after the petition line with a ':' are headers
+                if (end > 0 && line.indexOf(':') >= 0) headerCount++;
+                end = found ? lineEnd.end() : petition.length();
+                if (line.isEmpty()) break;
+            }
+            String head = petition.substring(0, end);
+            this.lines = LINE_END.split(head);
+            this.tokens = lines[0].split(" ");
+            boolean bad = head.length() > maxHeadSize || headerCount > maxHeaders || header("Transfer-Encoding") != null;
+            String contentLength = header("Content-Length");
+            if (!bad && contentLength != null) {
+                try {
+                    bad = Long.parseLong(contentLength) < 0;
+                } catch (NumberFormatException e) {
+                    bad = true;
+                }
+            }
+            this.malformed = bad;
+        }
+
+        /**
+         * Searches a header like the old HttpUtils.headerValue did.
+         */
+        String header(String name) {
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf(':');
+                if (separator == name.length() && lines[i].regionMatches(true, 0, name, 0, separator))
+                    return lines[i].substring(separator + 1).trim();
+            }
+            return null;
+        }
+
+        int status() {
+            if (malformed || tokens.length < 3) return 400;
+            if (!tokens[0].equals("GET") && !tokens[0].equals("HEAD")) return 400;
+            return files.contains(tokens[1]) || directories.contains(tokens[1]) ? 200 : 404;
+        }
+
+        boolean keepAlive() {
+            String value = header("Connection");
+            if (tokens[2].equals("HTTP/1.1")) return value == null || !value.equalsIgnoreCase("close");
+            return value != null && value.equalsIgnoreCase("keep-alive");
+        }
+    }
+}
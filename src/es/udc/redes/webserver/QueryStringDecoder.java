@@ -0,0 +1,182 @@
+package es.udc.redes.webserver;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class decodes the query of a petition ("name=Jos%C3%A9+Luis&x=1") in a
+ * single pass: parameters are separated by '&' (or ';'), '+' is a space and
+ * "%XX" escapes are decoded as UTF-8. Malformed escapes are kept as they are
+ * and invalid UTF-8 sequences become U+FFFD. Parameters without escapes are
+ * taken from the query without copying them; the others are decoded on a
+ * buffer of the thread, so only the final names and values are allocated.
+ * Only the first QUERY_MAX_PARAMETERS parameters are read, and parameters with
+ * a name or value longer than QUERY_MAX_LENGTH characters are left out, so a
+ * petition cannot flood the maps with keys.
+ * @author Miguel Blanco Godón.
+ */
+public final class QueryStringDecoder {
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[256]);
+    private static volatile int maxParameters = 256;
+    private static volatile int maxLength = 4096;
+
+    // The constructor is declared private to prevent instantiation.
+    private QueryStringDecoder() {
+
+    }
+
+    /**
+     * Sets the limits of the decoder from the configuration file.
+     * @param configFile a ConfFile with the QUERY_MAX_PARAMETERS and QUERY_MAX_LENGTH lines.
+     */
+    public static void configure(ConfFile configFile) {
+        maxParameters = configFile.getIntOption("QUERY_MAX_PARAMETERS", 256);
+        maxLength = configFile.getIntOption("QUERY_MAX_LENGTH", 4096);
+    }
+
+    /**
+     * Decodes a query keeping the first value of each parameter.
+     * @param query a String with the query, without the '?'.
+     * @param parameters a Map where the parameters are added. Names already on it are kept.
+     * @return the Map of parameters.
+     */
+    public static Map<String, String> decode(String query, Map<String, String> parameters) {
+        decode(query, 0, query.length(), (name, value) -> parameters.putIfAbsent(name, value));
+        return parameters;
+    }
+
+    /**
+     * Decodes a query keeping every value of repeated parameters, like "tag=a&tag=b".
+     * @param query a String with the query, without the '?'.
+     * @return a Map with the values of each parameter, in the order of the query.
+     */
+    public static Map<String, List<String>> decodeAll(String query) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        decode(query, 0, query.length(), (name, value) -> parameters.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value));
+        return parameters;
+    }
+
+    /**
+     * Decodes the query of a dynamic petition, "/Name.do?query" or "/Name.do/?query".
+     * @param uri a String with the resource of the petition.
+     * @return a Map with the first value of each parameter and the servlet class
+     * under "0x0Codename", or null if the resource isn't a .do petition.
+     */
+    public static Map<String, String> decodeDynamic(String uri) {
+        int end = uri.indexOf(".do");
+        if (end < 1 || uri.charAt(0) != '/') return null;
+        int query = end + 3;
+        if (query < uri.length() && uri.charAt(query) == '/') query++;
+        if (query < uri.length()) {
+            if (uri.charAt(query) != '?') return null;
+            query++;
+        }
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("0x0Codename", "es.udc.redes.webserver.".concat(uri.substring(1, end)));
+        decode(uri, query, uri.length(), (name, value) -> parameters.putIfAbsent(name, value));
+        return parameters;
+    }
+
+    /**
+     * Gives the parameters found between two positions of a text.
+     */
+    private static void decode(String text, int start, int end, Sink sink) {
+        int count = 0;
+        int position = start;
+        while (position < end && count < maxParameters) {
+            // The parameter goes until the next separator, its name until the first '='
+            int separator = position;
+            int equals = -1;
+            while (separator < end) {
+                char c = text.charAt(separator);
+                if (c == '&' || c == ';') break;
+                if (c == '=' && equals < 0) equals = separator;
+                separator++;
+            }
+            if (separator > position) {
+                int nameEnd = equals < 0 ? separator : equals;
+                int valueStart = equals < 0 ? separator : equals + 1;
+                if (nameEnd > position && nameEnd - position <= maxLength && separator - valueStart <= maxLength) {
+                    sink.accept(component(text, position, nameEnd), component(text, valueStart, separator));
+                    count++;
+                }
+            }
+            position = separator + 1;
+        }
+    }
+
+    /**
+     * Decodes a name or a value.
+     */
+    private static String component(String text, int start, int end) {
+        int first = start;
+        while (first < end && text.charAt(first) != '%' && text.charAt(first) != '+') first++;
+        // Nothing to decode
+        if (first == end) return text.substring(start, end);
+        byte[] bytes = buffers.get();
+        if (bytes.length < (end - start) * 3) {
+            bytes = new byte[Math.max((end - start) * 3, bytes.length * 2)];
+            buffers.set(bytes);
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '+') {
+                bytes[length++] = ' ';
+            } else if (c == '%' && hex(text, i + 1, end) >= 0) {
+                bytes[length++] = (byte) hex(text, i + 1, end);
+                i += 2;
+            } else if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                // Characters that weren't escaped are kept, encoded as UTF-8
+                int code = c;
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1)))
+                    code = Character.toCodePoint(c, text.charAt(++i));
+                length = encode(code, bytes, length);
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gives the value of the two hexadecimal digits at a position, or -1 if they aren't two digits.
+     */
+    private static int hex(String text, int position, int end) {
+        if (position + 1 >= end) return -1;
+        int high = Character.digit(text.charAt(position), 16);
+        int low = Character.digit(text.charAt(position + 1), 16);
+        return high < 0 || low < 0 ? -1 : high << 4 | low;
+    }
+
+    /**
+     * Writes a character as UTF-8, lone surrogates as '?'.
+     */
+    private static int encode(int code, byte[] bytes, int length) {
+        if (code >= Character.MIN_SURROGATE && code <= Character.MAX_SURROGATE) {
+            bytes[length++] = '?';
+            return length;
+        } else if (code < 0x800) {
+            bytes[length++] = (byte) (0xC0 | code >> 6);
+        } else if (code < 0x10000) {
+            bytes[length++] = (byte) (0xE0 | code >> 12);
+            bytes[length++] = (byte) (0x80 | code >> 6 & 0x3F);
+        } else {
+            bytes[length++] = (byte) (0xF0 | code >> 18);
+            bytes[length++] = (byte) (0x80 | code >> 12 & 0x3F);
+            bytes[length++] = (byte) (0x80 | code >> 6 & 0x3F);
+        }
+        bytes[length++] = (byte) (0x80 | code & 0x3F);
+        return length;
+    }
+
+    /**
+     * Receives the decoded parameters.
+     */
+    private interface Sink {
+        void accept(String name, String value);
+    }
+}
@@ -0,0 +1,312 @@
+package es.udc.redes.webserver;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class packs the server directory into a single archive file and serves
+ * the files from a memory mapping of it, so they are answered without touching
+ * the file system and their content stays in the page cache, outside the heap.
+ * The archive starts with an index (path, offset, length, MIME type and
+ * modification time of each file) followed by the content of the files.
+ * The archive is a snapshot: paths that aren't in it are served from the
+ * live file system, and it has to be packed again to see changes.
+ * It is enabled with the ARCHIVE line of server_properties.txt ("ARCHIVE_BUILD: true"
+ * packs it on startup) or packed by hand with
+ * "java es.udc.redes.webserver.ResourceArchive &lt;directory&gt; &lt;archive&gt;".
+ * @author Miguel Blanco Godón.
+ */
+public final class ResourceArchive {
+    private static final int MAGIC = 0x57454241;
+    private static final int VERSION = 1;
+    private static volatile ResourceArchive instance;
+
+    private final MappedByteBuffer mapping;
+    private final Map<String, Entry> entries;
+
+    private ResourceArchive(MappedByteBuffer mapping, Map<String, Entry> entries) {
+        this.mapping = mapping;
+        this.entries = entries;
+    }
+
+    /**
+     * Gives the archive being served.
+     * @return the ResourceArchive loaded by configure, or null if there isn't one.
+     */
+    public static ResourceArchive getInstance() {
+        return instance;
+    }
+
+    /**
+     * Loads, and packs first if ARCHIVE_BUILD is true, the archive named on the ARCHIVE line.
+     * On error the server keeps serving from the file system.
+     * @param configFile a ConfFile with the ARCHIVE, ARCHIVE_BUILD and DIRECTORY lines.
+     */
+    public static void configure(ConfFile configFile) {
+        String name = configFile.getOption("ARCHIVE", null);
+        if (name == null) {
+            instance = null;
+            return;
+        }
+        Path archive = Paths.get(name);
+        try {
+            if (configFile.getOption("ARCHIVE_BUILD", "false").equals("true"))
+                pack(Paths.get(configFile.getLocalServerDir()), archive);
+            instance = load(archive);
+        } catch (IOException e) {
+            System.out.println("Error: Cannot load resource archive " + archive + ", serving from the file system");
+            System.err.println("Error: " + e.getMessage());
+            instance = null;
+        }
+    }
+
+    /**
+     * Packs a directory from the command line.
+     * @param argv a String array with the directory and the archive file.
+     * @throws IOException if the archive cannot be written.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length != 2) {
+            System.err.println("Format: ResourceArchive <directory> <archive>");
+            System.exit(-1);
+        }
+        int count = pack(Paths.get(argv[0]), Paths.get(argv[1]));
+        System.out.println(count + " files packed into " + argv[1]);
+    }
+
+    /**
+     * Writes the archive of a directory. The log files and the archive itself aren't packed,
+     * nor its temporary files.
+     * It is written to a temporary file of the same directory that then replaces
+     * the archive, so a server that has the old one mapped keeps reading it whole.
+     * @param directory the Path of the server directory.
+     * @param archive the Path of the archive file.
+     * @return an int with the number of files packed.
+     * @throws IOException if the directory cannot be read or the archive cannot be written.
+     */
+    public static int pack(Path directory, Path archive) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(file -> !file.toAbsolutePath().equals(archive.toAbsolutePath()))
+                    .filter(file -> !isTemporary(file, archive))
+                    .filter(file -> !file.getFileName().toString().endsWith("_log.txt"))
+                    .sorted().collect(Collectors.toList());
+        }
+        List<Entry> index = new ArrayList<>();
+        for (Path file : files) {
+            if (Files.size(file) > Integer.MAX_VALUE) throw new IOException("File bigger than 2GB: " + file);
+            String contentType = Files.probeContentType(file);
+            index.add(new Entry(uriOf(directory, file), 0, (int) Files.size(file),
+                    contentType == null ? "application/octet-stream" : contentType,
+                    Files.getLastModifiedTime(file).toMillis()));
+        }
+        // The offsets don't change the size of the index, so it is measured first
+        long offset = writeIndex(index).length;
+        for (Entry entry : index) {
+            entry.offset = offset;
+            offset += entry.length;
+        }
+        if (offset > Integer.MAX_VALUE) throw new IOException("Archive bigger than 2GB");
+        // A server may have the old archive mapped, so it is replaced, never rewritten
+        Path parent = archive.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(parent, archive.getFileName().toString(), ".tmp");
+        try {
+            write(files, index, temporary);
+            Files.move(temporary, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return index.size();
+    }
+
+    private static void write(List<Path> files, List<Entry> index, Path archive) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(archive))) {
+            output.write(writeIndex(index));
+            byte[] buffer = new byte[65536];
+            for (int i = 0; i < files.size(); i++) {
+                // Exactly the indexed length is copied, so the offsets stay right
+                try (InputStream input = Files.newInputStream(files.get(i))) {
+                    int left = index.get(i).length;
+                    while (left > 0) {
+                        int read = input.read(buffer, 0, Math.min(left, buffer.length));
+                        if (read < 0) throw new IOException("File changed while packing: " + files.get(i));
+                        output.write(buffer, 0, read);
+                        left -= read;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps an archive file in memory and reads its index.
+     * @param archive the Path of the archive file.
+     * @return the ResourceArchive ready to serve its files.
+     * @throws IOException if the file cannot be mapped or isn't an archive.
+     */
+    public static ResourceArchive load(Path archive) throws IOException {
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Archive bigger than 2GB");
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferInputStream(mapping.duplicate()))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) throw new IOException("Not a resource archive: " + archive);
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), input.readLong(), input.readInt(), input.readUTF(), input.readLong());
+                if (entry.offset + entry.length > mapping.capacity()) throw new IOException("Truncated resource archive: " + archive);
+                entries.put(entry.uri, entry);
+            }
+        }
+        return new ResourceArchive(mapping, entries);
+    }
+
+    /**
+     * Looks for a file of the archive.
+     * @param uri a String with the requested resource, like "/dir/example.txt".
+     * @return the Entry of the file, or null if it isn't in the archive.
+     */
+    public Entry get(String uri) {
+        return entries.get(uri);
+    }
+
+    /**
+     * Gives the content of a file of the archive, without copying it.
+     * @param entry an Entry of this archive.
+     * @return a read-only ByteBuffer over the mapped file content.
+     */
+    public ByteBuffer content(Entry entry) {
+        ByteBuffer content = mapping.duplicate();
+        content.position((int) entry.offset);
+        content.limit((int) (entry.offset + entry.length));
+        return content.slice();
+    }
+
+    // Left behind by a pack that didn't finish
+    private static boolean isTemporary(Path file, Path archive) {
+        String name = file.getFileName().toString();
+        return name.startsWith(archive.getFileName().toString()) && name.endsWith(".tmp");
+    }
+
+    private static String uriOf(Path directory, Path file) {
+        StringBuilder uri = new StringBuilder();
+        for (Path name : directory.relativize(file)) {
+            uri.append('/');
+            uri.append(name);
+        }
+        return uri.toString();
+    }
+
+    private static byte[] writeIndex(List<Entry> index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(index.size());
+        for (Entry entry : index) {
+            output.writeUTF(entry.uri);
+            output.writeLong(entry.offset);
+            output.writeInt(entry.length);
+            output.writeUTF(entry.contentType);
+            output.writeLong(entry.lastModified);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The index information of a packed file.
+     */
+    public static final class Entry {
+        private final String uri;
+        private long offset;
+        private final int length;
+        private final String contentType;
+        private final long lastModified;
+
+        Entry(String uri, long offset, int length, String contentType, long lastModified) {
+            this.uri = uri;
+            this.offset = offset;
+            this.length = length;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Gives the size of the file.
+         * @return an int with the length in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Gives the entity tag of the file. Packed files cannot change, so it is a strong tag.
+         * @return a String with the quoted tag.
+         */
+        public String getETag() {
+            return EntityTag.strong(length, lastModified);
+        }
+
+        /**
+         * Gives the MIME type found when the file was packed.
+         * @return a String with the content type.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Gives the modification time of the file when it was packed.
+         * @return a long with the time in milliseconds.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer as an InputStream, used to parse the index.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(data, offset, length);
+            return length;
+        }
+    }
+}
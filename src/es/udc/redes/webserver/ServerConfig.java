@@ -0,0 +1,184 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps the configuration the server is using and reloads it when
+ * server_properties.txt changes, without restarting the server.
+ * The configuration is an immutable ConfFile: connections take the current one
+ * with current() at the start of each petition, a plain volatile read, and a
+ * reload swaps it for a new one. A changed file is only applied if validate()
+ * finds no errors; otherwise the errors are written and the previous
+ * configuration stays in use. The caches, the servlet registry and the
+ * listeners added with addListener() are configured again after every swap.
+ * PORT, ENGINE, NIO_LOOPS, EXECUTION_MODE, QUEUE_SIZE and ACCEPT_BACKLOG are only read
+ * when the server starts.
+ * @author Miguel Blanco Godón.
+ */
+public final class ServerConfig {
+    // Time to wait for more changes, editors usually write a file in several steps
+    private static final long SETTLE_MILLIS = 200;
+    private static final String[] RESTART_KEYS = {"PORT", "ENGINE", "NIO_LOOPS", "EXECUTION_MODE", "QUEUE_SIZE", "ACCEPT_BACKLOG"};
+    private static final AtomicReference<ConfFile> current = new AtomicReference<>();
+    private static final List<Consumer<ConfFile>> listeners = new CopyOnWriteArrayList<>();
+
+    // The constructor is declared private to prevent instantiation.
+    private ServerConfig() {
+
+    }
+
+    /**
+     * Reads server_properties.txt from the working directory, configures every
+     * part of the server with it and starts watching the file.
+     * @return the ConfFile read, with default values if the file cannot be read.
+     */
+    public static ConfFile load() {
+        ConfFile configFile = new ConfFile();
+        for (String error : configFile.validate()) System.out.println("Error: " + error);
+        current.set(configFile);
+        configureAll(configFile, null);
+        watch(ConfFile.getDefaultPath());
+        return configFile;
+    }
+
+    /**
+     * Puts a configuration in use and configures every part of the server with
+     * it, without reading nor watching server_properties.txt. Used by tools
+     * that run the server code on their own directory, like HotPathBenchmark.
+     * @param configFile the ConfFile to use.
+     */
+    public static void set(ConfFile configFile) {
+        configureAll(configFile, current.getAndSet(configFile));
+    }
+
+    /**
+     * Gives the configuration in use.
+     * @return the current ConfFile. It never changes, a reload gives a new one.
+     */
+    public static ConfFile current() {
+        return current.get();
+    }
+
+    /**
+     * Adds a task that is run with the new configuration after every reload.
+     * @param listener a Consumer that receives the new ConfFile.
+     */
+    public static void addListener(Consumer<ConfFile> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reads the configuration file again and, if it is valid, puts it in use.
+     * @param file the Path of the configuration file.
+     * @return true if the new configuration is in use.
+     */
+    public static boolean reload(Path file) {
+        ConfFile configFile;
+        try {
+            configFile = ConfFile.read(file);
+        } catch (IOException e) {
+            System.out.println("Error: Cannot read " + file + ", keeping the current configuration");
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+        List<String> errors = configFile.validate();
+        if (!errors.isEmpty()) {
+            System.out.println("Error: " + file + " has errors, keeping the current configuration");
+            for (String error : errors) System.out.println("Error: " + error);
+            return false;
+        }
+        ConfFile previous = current.getAndSet(configFile);
+        if (previous != null && previous.getOptions().equals(configFile.getOptions())) return true;
+        for (String key : RESTART_KEYS) {
+            if (previous != null && !Objects.equals(previous.getOptions().get(key), configFile.getOptions().get(key)))
+                System.out.println("Warning: " + key + " changes when the server is restarted");
+        }
+        configureAll(configFile, previous);
+        System.out.println("Configuration reloaded from " + file);
+        return true;
+    }
+
+    /**
+     * Configures the logger, the caches, the resource archive and the servlet registry, and
+     * runs the listeners. The archive is only loaded again if its lines changed.
+     */
+    private static void configureAll(ConfFile configFile, ConfFile previous) {
+        AccessLogger.configure(configFile);
+        ContentCache.configure(configFile);
+        CompressedCache.configure(configFile);
+        HeaderCache.configure(configFile);
+        DirectoryListing.configure(configFile);
+        if (previous == null || !Objects.equals(previous.getOption("ARCHIVE", null), configFile.getOption("ARCHIVE", null))
+                || !Objects.equals(previous.getOption("ARCHIVE_BUILD", null), configFile.getOption("ARCHIVE_BUILD", null)))
+            ResourceArchive.configure(configFile);
+        ServletRegistry.configure(configFile);
+        ServletExecutor.configure(configFile);
+        ServletCache.configure(configFile);
+        QueryStringDecoder.configure(configFile);
+        ServerMetrics.configure(configFile);
+        AdmissionControl.configure(configFile);
+        for (Consumer<ConfFile> listener : listeners) {
+            try {
+                listener.accept(configFile);
+            } catch (RuntimeException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads the file when it is written, created or replaced.
+     */
+    private static void watch(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Warning: Cannot watch " + file + ", the configuration won't be reloaded");
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    long settled = 0;
+                    // Waits until the file stops changing. Only its own events restart the wait: the
+                    // log files on the same directory are written all the time and would postpone it forever
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            Object name = event.context();
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(name)) {
+                                changed = true;
+                                settled = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+                            }
+                        }
+                        if (!key.reset()) return;
+                        long left = settled - System.nanoTime();
+                        if (!changed || left <= 0) break;
+                        key = watcher.poll(left, TimeUnit.NANOSECONDS);
+                    }
+                    if (changed) reload(file);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // The server is stopping
+            }
+        }, "webserver-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,230 @@
+package es.udc.redes.webserver;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts what the server does: petitions by method and by status
+ * code, bytes sent, open and accepted connections, the hits of the caches and
+ * the latency of every kind of handler (static files, directory listings,
+ * servlets, this status page and bad petitions), and the execution time and
+ * errors of each servlet, from the ServletExecutor.
+ * Every counter is a LongAdder and every latency goes to a LatencyHistogram,
+ * so recording never locks and it can be left on in production. The counters
+ * are shown on the STATUS_PATH resource (default "/server-status", "none"
+ * hides it): as text for people, or with "?auto" in the Prometheus text
+ * format, one "name{labels} value" line per counter, for programs.
+ * @author Miguel Blanco Godón.
+ */
+public final class ServerMetrics {
+    /** Answers given from the file system or the resource archive. */
+    public static final int STATIC = 0;
+    /** Answers to petitions of a directory, with its index file or its listing. */
+    public static final int DIRECTORY = 1;
+    /** Answers of the servlets, the .do petitions. */
+    public static final int SERVLET = 2;
+    /** Answers of the status page. */
+    public static final int STATUS = 3;
+    /** Answers to bad petitions and to methods the server doesn't implement. */
+    public static final int ERROR = 4;
+    private static final String[] HANDLERS = {"static", "directory", "servlet", "status", "error"};
+    private static final String[] METHODS = {"GET", "HEAD", "OTHER"};
+    private static final ServerMetrics instance = new ServerMetrics();
+
+    private final long startTime = System.currentTimeMillis();
+    private final LongAdder[] methods = new LongAdder[METHODS.length];
+    // Answers by status code, from 100 to 599
+    private final LongAdder[] statuses = new LongAdder[600];
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[HANDLERS.length];
+    private volatile String statusPath = "/server-status";
+
+    private ServerMetrics() {
+        for (int i = 0; i < methods.length; i++) methods[i] = new LongAdder();
+        for (int i = 100; i < statuses.length; i++) statuses[i] = new LongAdder();
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Gives the metrics shared by every connection.
+     * @return the ServerMetrics of the server.
+     */
+    public static ServerMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the path of the status page from the configuration file.
+     * @param configFile a ConfFile with the STATUS_PATH line.
+     */
+    public static void configure(ConfFile configFile) {
+        String path = configFile.getOption("STATUS_PATH", "/server-status");
+        instance.statusPath = path.equals("none") || !path.startsWith("/") ? null : path;
+    }
+
+    /**
+     * Tells if a petition asks for the status page.
+     * @param uri a String with the resource of the petition.
+     * @return true if the resource is the STATUS_PATH, with or without a query.
+     */
+    public boolean isStatusPage(String uri) {
+        String path = statusPath;
+        return path != null && uri.startsWith(path) && (uri.length() == path.length() || uri.charAt(path.length()) == '?');
+    }
+
+    /**
+     * Counts an accepted connection.
+     */
+    public void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    /**
+     * Counts a closed connection.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts an answered petition.
+     * @param method a String with the method of the petition.
+     * @param handler an int with the kind of answer, like STATIC.
+     * @param status an int with the status code of the answer.
+     * @param length a long with the bytes of the answer, or -1 if it is generated while it is sent.
+     * @param nanos a long with the time taken to build the answer, in nanoseconds.
+     */
+    public void record(String method, int handler, int status, long length, long nanos) {
+        methods["GET".equals(method) ? 0 : "HEAD".equals(method) ? 1 : 2].increment();
+        if (status >= 100 && status < statuses.length) statuses[status].increment();
+        if (length > 0) bytesSent.add(length);
+        latencies[handler].record(nanos);
+    }
+
+    /**
+     * Writes every counter.
+     * @param machine a boolean, true for the Prometheus text format, false for text to be read by people.
+     * @return a String with the report.
+     */
+    public String report(boolean machine) {
+        StringBuilder report = new StringBuilder();
+        long uptime = (System.currentTimeMillis() - startTime) / 1000;
+        ContentCache content = ContentCache.getInstance();
+        HeaderCache headers = HeaderCache.getInstance();
+        CompressedCache compressed = CompressedCache.getInstance();
+        ServletCache servlets = ServletCache.getInstance();
+        AdmissionControl admission = AdmissionControl.getInstance();
+        if (machine) {
+            line(report, "webserver_uptime_seconds", "", uptime);
+            line(report, "webserver_connections_active", "", activeConnections.sum());
+            line(report, "webserver_connections_total", "", acceptedConnections.sum());
+            line(report, "webserver_connections_rejected_total", "", admission.getRejected());
+            line(report, "webserver_connections_limit", "", admission.getLimit());
+            line(report, "webserver_connections_expired_total", "", ConnectionDeadline.getExpired());
+            for (int i = 0; i < METHODS.length; i++) line(report, "webserver_requests_total", "method=\"" + METHODS[i] + "\"", methods[i].sum());
+            for (int i = 100; i < statuses.length; i++) {
+                long count = statuses[i].sum();
+                if (count > 0) line(report, "webserver_responses_total", "code=\"" + i + "\"", count);
+            }
+            line(report, "webserver_sent_bytes_total", "", bytesSent.sum());
+            line(report, "webserver_cache_hits_total", "cache=\"content\"", content.getHits());
+            line(report, "webserver_cache_misses_total", "cache=\"content\"", content.getMisses());
+            line(report, "webserver_cache_hits_total", "cache=\"header\"", headers.getHits());
+            line(report, "webserver_cache_misses_total", "cache=\"header\"", headers.getMisses());
+            line(report, "webserver_cache_hits_total", "cache=\"compressed\"", compressed.getHits());
+            line(report, "webserver_cache_misses_total", "cache=\"compressed\"", compressed.getMisses());
+            line(report, "webserver_cache_hits_total", "cache=\"servlet\"", servlets.getHits());
+            line(report, "webserver_cache_misses_total", "cache=\"servlet\"", servlets.getMisses());
+            for (int i = 0; i < HANDLERS.length; i++) {
+                String handler = "handler=\"" + HANDLERS[i] + "\"";
+                for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                    report.append("webserver_request_duration_seconds{").append(handler).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(latencies[i].getPercentile(Double.parseDouble(quantile) * 100))).append('\n');
+                }
+                report.append("webserver_request_duration_seconds_sum{").append(handler).append("} ")
+                        .append(seconds(latencies[i].getSum())).append('\n');
+                line(report, "webserver_request_duration_seconds_count", handler, latencies[i].getCount());
+            }
+            for (Map.Entry<String, ServletExecutor.Stats> servlet : ServletExecutor.getInstance().getStats().entrySet()) {
+                String name = "servlet=\"" + servletName(servlet.getKey()) + "\"";
+                ServletExecutor.Stats stats = servlet.getValue();
+                for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                    report.append("webserver_servlet_duration_seconds{").append(name).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(stats.getLatency().getPercentile(Double.parseDouble(quantile) * 100))).append('\n');
+                }
+                report.append("webserver_servlet_duration_seconds_sum{").append(name).append("} ")
+                        .append(seconds(stats.getLatency().getSum())).append('\n');
+                line(report, "webserver_servlet_duration_seconds_count", name, stats.getLatency().getCount());
+                line(report, "webserver_servlet_errors_total", name + ",reason=\"failure\"", stats.getFailures());
+                line(report, "webserver_servlet_errors_total", name + ",reason=\"timeout\"", stats.getTimeouts());
+                line(report, "webserver_servlet_errors_total", name + ",reason=\"rejected\"", stats.getRejections());
+            }
+            return report.toString();
+        }
+        report.append("Server status\n\n");
+        report.append("Uptime: ").append(uptime).append(" s\n");
+        report.append("Connections: ").append(activeConnections.sum()).append(" open, ")
+                .append(acceptedConnections.sum()).append(" accepted, ").append(admission.getRejected())
+                .append(" rejected (limit ").append(admission.getLimit()).append("), ")
+                .append(ConnectionDeadline.getExpired()).append(" closed by a deadline\n");
+        report.append("Petitions:");
+        for (int i = 0; i < METHODS.length; i++) report.append(' ').append(METHODS[i]).append(' ').append(methods[i].sum());
+        report.append("\nAnswers:");
+        for (int i = 100; i < statuses.length; i++) {
+            long count = statuses[i].sum();
+            if (count > 0) report.append(' ').append(i).append(' ').append(count);
+        }
+        report.append("\nBytes sent: ").append(bytesSent.sum()).append('\n');
+        report.append("Cache hits: content ").append(ratio(content.getHits(), content.getMisses()))
+                .append(", header ").append(ratio(headers.getHits(), headers.getMisses()))
+                .append(", compressed ").append(ratio(compressed.getHits(), compressed.getMisses()))
+                .append(", servlet ").append(ratio(servlets.getHits(), servlets.getMisses())).append("\n\n");
+        report.append(String.format(Locale.ROOT, "%-12s %10s %9s %9s %9s %9s %9s%n", "Latency (ms)", "count", "mean", "p50", "p90", "p99", "p99.9"));
+        for (int i = 0; i < HANDLERS.length; i++) {
+            LatencyHistogram latency = latencies[i];
+            long count = latency.getCount();
+            report.append(String.format(Locale.ROOT, "%-12s %10d %9.3f %9.3f %9.3f %9.3f %9.3f%n", HANDLERS[i], count,
+                    count == 0 ? 0 : latency.getSum() / 1e3 / count, latency.getPercentile(50) / 1e3,
+                    latency.getPercentile(90) / 1e3, latency.getPercentile(99) / 1e3, latency.getPercentile(99.9) / 1e3));
+        }
+        Map<String, ServletExecutor.Stats> executions = ServletExecutor.getInstance().getStats();
+        if (executions.isEmpty()) return report.toString();
+        report.append(String.format(Locale.ROOT, "%n%-16s %10s %9s %9s %9s %9s %9s %8s %8s %8s%n", "Servlet (ms)", "count",
+                "mean", "p50", "p90", "p99", "p99.9", "failed", "timeout", "rejected"));
+        for (Map.Entry<String, ServletExecutor.Stats> servlet : executions.entrySet()) {
+            ServletExecutor.Stats stats = servlet.getValue();
+            LatencyHistogram latency = stats.getLatency();
+            long count = latency.getCount();
+            report.append(String.format(Locale.ROOT, "%-16s %10d %9.3f %9.3f %9.3f %9.3f %9.3f %8d %8d %8d%n", servletName(servlet.getKey()), count,
+                    count == 0 ? 0 : latency.getSum() / 1e3 / count, latency.getPercentile(50) / 1e3, latency.getPercentile(90) / 1e3,
+                    latency.getPercentile(99) / 1e3, latency.getPercentile(99.9) / 1e3,
+                    stats.getFailures(), stats.getTimeouts(), stats.getRejections()));
+        }
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String name, String labels, long value) {
+        report.append(name);
+        if (!labels.isEmpty()) report.append('{').append(labels).append('}');
+        report.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Gives the name of a servlet without its package.
+     */
+    private static String servletName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    private static String ratio(long hits, long misses) {
+        if (hits + misses == 0) return "-";
+        return String.format(Locale.ROOT, "%.1f%% (%d/%d)", 100.0 * hits / (hits + misses), hits, hits + misses);
+    }
+}
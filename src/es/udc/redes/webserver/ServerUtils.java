@@ -1,17 +1,27 @@
 package es.udc.redes.webserver;
 
+import java.io.StringWriter;
 import java.util.Map;
 
 public class ServerUtils {
 
+	/**
+	 * Answers a dynamic petition with the servlet kept by the ServletRegistry.
+	 * The page of a StreamingServlet is collected on a String.
+	 * @param nombreclase a String with the complete class name of the servlet.
+	 * @param parameters a pair "key,value" with each variable name and it's value.
+	 * @return a String with the servlet answer, or null if there isn't a servlet with that name.
+	 * @throws Exception if the servlet fails.
+	 */
 	public static String processDynRequest(String nombreclase,
 			Map<String, String> parameters) throws Exception {
 
-		MiniServlet servlet;
-		Class instancia;
-		instancia = Class.forName(nombreclase);
-		servlet = (MiniServlet) instancia.newInstance();
-		return servlet.doGet(parameters);
+		StreamingServlet servlet = ServletRegistry.getInstance().lookup(nombreclase);
+		if (servlet == null) return null;
+		if (servlet instanceof MiniServletAdapter) return ((MiniServletAdapter) servlet).getServlet().doGet(parameters);
+		StringWriter page = new StringWriter();
+		servlet.doGet(parameters, page);
+		return page.toString();
 
 	}
 }
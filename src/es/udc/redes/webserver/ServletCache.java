@@ -0,0 +1,240 @@
+package es.udc.redes.webserver;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the pages of the servlets that implement CacheableServlet,
+ * so a .do petition asked again with the same parameters is answered from
+ * memory, like a static file, without running the servlet.
+ * Pages are indexed by servlet and parameters (in name order, so their order on
+ * the query doesn't matter) and kept with their header lines already encoded,
+ * and their compressed variants once a client asks for them. A page is sent
+ * again until its time to live ends: the one of the servlet, or SERVLET_CACHE_TTL
+ * milliseconds. The SERVLET_CACHE_ENTRIES least recently used pages are kept;
+ * pages bigger than CACHE_MAX_ENTRY_BYTES are not. "SERVLET_CACHE: false"
+ * disables it. Concurrent misses of the same page wait for the first one to run
+ * the servlet, at most COALESCE_WAIT_MS milliseconds, instead of running it again.
+ * @author Miguel Blanco Godón.
+ */
+public final class ServletCache {
+    private static final ServletCache instance = new ServletCache();
+
+    // Pages in access order, the first one is the least recently used
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<String, Page>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final SingleFlight<String, Page> runs = new SingleFlight<>();
+    private volatile boolean enabled = true;
+    private volatile int maxEntries = 1024;
+    private volatile long timeToLive = 5000;
+    private volatile long maxPageBytes = 1024 * 1024;
+    private volatile long waitMillis = 5000;
+
+    private ServletCache() {
+
+    }
+
+    /**
+     * Gives the cache shared by every connection.
+     * @return the ServletCache of the server.
+     */
+    public static ServletCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the cache from the configuration file and forgets the pages kept.
+     * @param configFile a ConfFile with the SERVLET_CACHE, SERVLET_CACHE_ENTRIES, SERVLET_CACHE_TTL, CACHE_MAX_ENTRY_BYTES and COALESCE_WAIT_MS lines.
+     */
+    public static void configure(ConfFile configFile) {
+        instance.enabled = !configFile.getOption("SERVLET_CACHE", "true").equals("false");
+        instance.maxEntries = configFile.getIntOption("SERVLET_CACHE_ENTRIES", 1024);
+        instance.timeToLive = configFile.getIntOption("SERVLET_CACHE_TTL", 5000);
+        instance.maxPageBytes = configFile.getIntOption("CACHE_MAX_ENTRY_BYTES", 1024 * 1024);
+        instance.waitMillis = configFile.getIntOption("COALESCE_WAIT_MS", 5000);
+        synchronized (instance) {
+            instance.pages.clear();
+        }
+    }
+
+    /**
+     * Gives the page of a MiniServlet, from memory if the servlet is cacheable
+     * and the page is still alive. Other servlets are run on every petition.
+     * @param parameters a pair "key,value" with each variable name and it's value, as DynamicPages.parseVariables gives them.
+     * @return the Page, with an error if the servlet failed, or null if there isn't a servlet with that name.
+     */
+    public Page get(Map<String, String> parameters) {
+        if (parameters == null) return null;
+        long timeToLive = timeToLive(ServletRegistry.getInstance().lookup(parameters.get("0x0Codename")));
+        if (timeToLive <= 0) return run(parameters, 0);
+        String key = key(parameters);
+        long now = System.nanoTime();
+        Page page;
+        synchronized (this) {
+            page = pages.get(key);
+        }
+        if (page != null && now - page.expires < 0) {
+            hits.increment();
+            return page;
+        }
+        misses.increment();
+        return runs.get(key, () -> store(key, run(parameters, now + timeToLive * 1000000)), waitMillis);
+    }
+
+    /**
+     * Gives the number of petitions answered with a page kept in memory.
+     * @return a long with the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gives the number of petitions of cacheable servlets that had to run the servlet.
+     * @return a long with the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Keeps a page if it isn't too big. It is done before the waiting petitions
+     * are released, so the next ones find it.
+     */
+    private Page store(String key, Page page) {
+        if (page != null && page.error == null && page.identity.data.length <= maxPageBytes) {
+            synchronized (this) {
+                pages.put(key, page);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Runs the servlet on the ServletExecutor. Failures give a Page with the
+     * error answer, so petitions waiting for the same page get it too.
+     */
+    private static Page run(Map<String, String> parameters, long expires) {
+        try {
+            String content = ServletExecutor.getInstance().call(parameters);
+            return content == null ? null : new Page(content.getBytes(), expires);
+        } catch (RejectedExecutionException e) {
+            return new Page("503 Service Unavailable");
+        } catch (TimeoutException e) {
+            HttpUtils.errorLog("Servlet " + parameters.get("0x0Codename") + " timed out");
+            return new Page("504 Gateway Timeout");
+        } catch (Exception e) {
+            HttpUtils.errorLog("Cannot create dynamic resource " + parameters.get("0x0Codename") + ": " + e.getMessage());
+            return new Page("500 Internal Server Error");
+        }
+    }
+
+    /**
+     * Gives the time to live of the pages of a servlet, 0 if they can't be kept.
+     */
+    private long timeToLive(StreamingServlet servlet) {
+        if (!enabled || !(servlet instanceof MiniServletAdapter)) return 0;
+        MiniServlet miniServlet = ((MiniServletAdapter) servlet).getServlet();
+        if (!(miniServlet instanceof CacheableServlet)) return 0;
+        long servletTime = ((CacheableServlet) miniServlet).getTimeToLive();
+        return servletTime > 0 ? servletTime : timeToLive;
+    }
+
+    /**
+     * Writes the parameters in name order, each name and value after its length,
+     * so different parameters never give the same key.
+     */
+    private static String key(Map<String, String> parameters) {
+        StringBuilder key = new StringBuilder(64);
+        for (Map.Entry<String, String> parameter : new TreeMap<>(parameters).entrySet()) {
+            key.append(parameter.getKey().length()).append(':').append(parameter.getKey());
+            key.append(parameter.getValue().length()).append(':').append(parameter.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * The page of a servlet and its compressed variants.
+     */
+    public static final class Page {
+        private final Variant identity;
+        private final long expires;
+        private final String error;
+        private final Map<String, Variant> encoded = new ConcurrentHashMap<>(2);
+
+        Page(byte[] data, long expires) {
+            this.identity = new Variant(data, null);
+            this.expires = expires;
+            this.error = null;
+        }
+
+        Page(String error) {
+            this.identity = null;
+            this.expires = 0;
+            this.error = error;
+        }
+
+        /**
+         * Tells if the servlet failed to give the page.
+         * @return a String with the status of the error answer, like "504 Gateway Timeout", or null if there is a page.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Gives the page as it must be sent with a content coding, compressing it the first time.
+         * @param encoding a String with the content coding the client accepts, like "gzip", or null.
+         * @return the Variant, the page as it is if it must not or cannot be compressed.
+         */
+        public Variant variant(String encoding) {
+            if (encoding == null) return identity;
+            return encoded.computeIfAbsent(encoding, coding -> {
+                byte[] compressed = CompressedCache.getInstance().compressDynamic(identity.data, coding);
+                return compressed != null ? new Variant(compressed, coding) : identity;
+            });
+        }
+    }
+
+    /**
+     * The bytes of a page and its header lines.
+     */
+    public static final class Variant {
+        private final byte[] data;
+        private final byte[] headerLines;
+
+        Variant(byte[] data, String encoding) {
+            this.data = data;
+            String separator = System.lineSeparator();
+            this.headerLines = ("Content-Length: " + data.length + separator
+                    + (encoding != null ? "Content-Encoding: " + encoding + separator + "Vary: Accept-Encoding" + separator : "")
+                    + "Content-Type: text/html" + separator).getBytes();
+        }
+
+        /**
+         * Gives the bytes of the page.
+         * @return a byte[] with the page. It must not be modified.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Gives the Content-Length, Content-Encoding, Vary and Content-Type header lines of the page.
+         * @return a byte[] with the lines. It must not be modified.
+         */
+        public byte[] getHeaderLines() {
+            return headerLines;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package es.udc.redes.webserver;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class runs the servlets on a pool of their own, apart from the threads
+ * that serve the connections, so a slow or hung servlet cannot hold the static
+ * traffic. The pool has SERVLET_THREADS threads and a queue of SERVLET_QUEUE_SIZE
+ * petitions; when both are full the petition is rejected. Each servlet can run
+ * at most SERVLET_MAX_CONCURRENCY times at once, so one bad servlet only blocks
+ * its own petitions. A page that takes more than SERVLET_TIMEOUT milliseconds is
+ * given up and its servlet interrupted.
+ * The execution time, failures, timeouts and rejections are counted per servlet.
+ * @author Miguel Blanco Godón.
+ */
+public final class ServletExecutor {
+    // Created before the instance, as its pool needs it
+    private static final ThreadFactory threads = new ServletFactory();
+    private static final ServletExecutor instance = new ServletExecutor();
+
+    private final ConcurrentHashMap<String, Semaphore> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+    private volatile ThreadPoolExecutor pool = pool(16, 64);
+    private volatile int maxConcurrency = 8;
+    private volatile long timeoutMillis = 10000;
+
+    private ServletExecutor() {
+
+    }
+
+    /**
+     * Gives the executor shared by every connection.
+     * @return the ServletExecutor of the server.
+     */
+    public static ServletExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits of the executor from the configuration file. If the pool
+     * changes, a new one is created; the servlets running on the old one finish there.
+     * @param configFile a ConfFile with the SERVLET_THREADS, SERVLET_QUEUE_SIZE, SERVLET_MAX_CONCURRENCY and SERVLET_TIMEOUT lines.
+     */
+    public static void configure(ConfFile configFile) {
+        int threads = configFile.getIntOption("SERVLET_THREADS", 16);
+        int queueSize = configFile.getIntOption("SERVLET_QUEUE_SIZE", 64);
+        instance.maxConcurrency = configFile.getIntOption("SERVLET_MAX_CONCURRENCY", 8);
+        instance.timeoutMillis = configFile.getIntOption("SERVLET_TIMEOUT", 10000);
+        // Running servlets keep the permits of the old limits
+        instance.limits.clear();
+        ThreadPoolExecutor old = instance.pool;
+        if (old.getMaximumPoolSize() == threads && old.getQueue().size() + old.getQueue().remainingCapacity() == queueSize) return;
+        instance.pool = pool(threads, queueSize);
+        old.shutdown();
+    }
+
+    /**
+     * Runs a MiniServlet, or a StreamingServlet whose page is collected, and waits for its page.
+     * @param parameters a pair "key,value" with each variable name and it's value, as DynamicPages.parseVariables gives them.
+     * @return a String with the page, or null if there isn't a servlet with that name.
+     * @throws RejectedExecutionException if the servlet or the pool are busy.
+     * @throws TimeoutException if the page took more than SERVLET_TIMEOUT milliseconds.
+     * @throws Exception if the servlet failed.
+     */
+    public String call(Map<String, String> parameters) throws Exception {
+        String name = parameters.get("0x0Codename");
+        if (ServletRegistry.getInstance().lookup(name) == null) return null;
+        Future<String> page = submit(name, () -> ServerUtils.processDynRequest(name, parameters));
+        try {
+            return page.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            page.cancel(true);
+            stats(name).timeouts.increment();
+            throw e;
+        } catch (InterruptedException e) {
+            page.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Runs a task of a servlet on the pool, if the servlet isn't running
+     * SERVLET_MAX_CONCURRENCY times already.
+     * @param name a String with the complete class name of the servlet.
+     * @param task the Callable that runs the servlet.
+     * @param <T> the type of the result of the task.
+     * @return the Future of the task.
+     * @throws RejectedExecutionException if the servlet or the pool are busy.
+     */
+    public <T> Future<T> submit(String name, Callable<T> task) {
+        Stats servlet = stats(name);
+        Semaphore limit = limits.computeIfAbsent(name, key -> new Semaphore(maxConcurrency));
+        if (!limit.tryAcquire()) {
+            servlet.rejections.increment();
+            throw new RejectedExecutionException(name + " is running " + maxConcurrency + " times");
+        }
+        // The permit is released by the task, or by the Future if it is cancelled before it starts
+        AtomicBoolean started = new AtomicBoolean();
+        FutureTask<T> future = new FutureTask<T>(() -> {
+            if (!started.compareAndSet(false, true)) return null;
+            long start = System.nanoTime();
+            try {
+                return task.call();
+            } catch (Exception e) {
+                servlet.failures.increment();
+                throw e;
+            } finally {
+                servlet.latency.record(System.nanoTime() - start);
+                limit.release();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (started.compareAndSet(false, true)) limit.release();
+            }
+        };
+        try {
+            pool.execute(future);
+        } catch (RejectedExecutionException e) {
+            limit.release();
+            servlet.rejections.increment();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Gives the time a servlet has to give its page, or each piece of it.
+     * @return a long with the SERVLET_TIMEOUT in milliseconds.
+     */
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Gives the counters of every servlet run so far.
+     * @return a Map from the complete class name of each servlet to its Stats, in name order.
+     */
+    public Map<String, Stats> getStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(stats));
+    }
+
+    /**
+     * Counts a servlet that took more than SERVLET_TIMEOUT milliseconds to write a piece of its page.
+     * @param name a String with the complete class name of the servlet.
+     */
+    void timedOut(String name) {
+        stats(name).timeouts.increment();
+    }
+
+    private Stats stats(String name) {
+        return stats.computeIfAbsent(name, key -> new Stats());
+    }
+
+    private static ThreadPoolExecutor pool(int size, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threads, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * The execution time and the failures of a servlet.
+     */
+    public static final class Stats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+
+        /**
+         * Gives the execution times of the servlet, failed ones included.
+         * @return the LatencyHistogram of the servlet.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Gives the number of times the servlet threw an exception.
+         * @return a long with the number of failures.
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * Gives the number of pages given up after SERVLET_TIMEOUT milliseconds.
+         * @return a long with the number of timeouts.
+         */
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        /**
+         * Gives the number of petitions rejected because the servlet or the pool were busy.
+         * @return a long with the number of rejections.
+         */
+        public long getRejections() {
+            return rejections.sum();
+        }
+    }
+
+    /**
+     * Names the servlet threads so they can be told apart on a thread dump.
+     */
+    private static final class ServletFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread servlet = new Thread(task, "webserver-servlet-" + count.incrementAndGet());
+            servlet.setDaemon(true);
+            return servlet;
+        }
+    }
+}
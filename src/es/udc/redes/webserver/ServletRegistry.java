@@ -0,0 +1,166 @@
+package es.udc.redes.webserver;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * This class keeps one instance of each servlet, so the .do petitions
+ * don't load the class and create a new object every time.
+ * A servlet is resolved and created the first time it is requested (or on
+ * startup, with the SERVLETS line of server_properties.txt or "SERVLET_SCAN: true",
+ * which registers every servlet of this package). Names that aren't servlets
+ * are remembered, so they are rejected without looking for the class again.
+ * With "SERVLETS_ONLY_REGISTERED: true" only the servlets registered on startup are served.
+ * As the instances are shared by every connection, servlets must not keep
+ * petition state on their fields. Servlets are kept as StreamingServlet; the
+ * MiniServlet ones are wrapped on a MiniServletAdapter.
+ * @author Miguel Blanco Godón.
+ */
+public final class ServletRegistry {
+    private static final String PACKAGE = "es.udc.redes.webserver.";
+    // Maximum number of unknown names remembered
+    private static final int MAX_UNKNOWN = 4096;
+    private static final ServletRegistry instance = new ServletRegistry();
+
+    private final ConcurrentHashMap<String, StreamingServlet> servlets = new ConcurrentHashMap<>();
+    private final Set<String> unknown = ConcurrentHashMap.newKeySet();
+    private volatile boolean onlyRegistered;
+
+    private ServletRegistry() {
+
+    }
+
+    /**
+     * Gives the registry shared by every connection.
+     * @return the ServletRegistry of the server.
+     */
+    public static ServletRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the servlets named on the SERVLETS line (comma separated class
+     * names, with or without package) and, if SERVLET_SCAN is true, every
+     * MiniServlet or StreamingServlet found on this package.
+     * @param configFile a ConfFile with the SERVLETS, SERVLET_SCAN and SERVLETS_ONLY_REGISTERED lines.
+     */
+    public static void configure(ConfFile configFile) {
+        for (String name : configFile.getOption("SERVLETS", "").split(",")) {
+            if (name.trim().isEmpty()) continue;
+            String className = name.trim().startsWith(PACKAGE) ? name.trim() : PACKAGE + name.trim();
+            if (instance.lookup(className) == null) System.out.println("Error: " + className + " is not a MiniServlet nor a StreamingServlet");
+        }
+        if (configFile.getOption("SERVLET_SCAN", "false").equals("true")) instance.scan();
+        instance.onlyRegistered = configFile.getOption("SERVLETS_ONLY_REGISTERED", "false").equals("true");
+    }
+
+    /**
+     * Gives the servlet of a class, creating it the first time.
+     * @param className a String with the complete class name, like "es.udc.redes.webserver.MiServlet".
+     * @return the StreamingServlet instance (a MiniServletAdapter for MiniServlet classes), or null if there isn't a servlet with that name.
+     */
+    public StreamingServlet lookup(String className) {
+        StreamingServlet servlet = servlets.get(className);
+        if (servlet != null || onlyRegistered || unknown.contains(className)) return servlet;
+        servlet = create(className);
+        if (servlet == null) {
+            if (unknown.size() >= MAX_UNKNOWN) unknown.clear();
+            unknown.add(className);
+            return null;
+        }
+        StreamingServlet previous = servlets.putIfAbsent(className, servlet);
+        return previous != null ? previous : servlet;
+    }
+
+    /**
+     * Registers a servlet instance with a name.
+     * @param className a String with the complete class name used on the petitions.
+     * @param servlet the MiniServlet that answers them.
+     */
+    public void register(String className, MiniServlet servlet) {
+        register(className, new MiniServletAdapter(servlet));
+    }
+
+    /**
+     * Registers a streaming servlet instance with a name.
+     * @param className a String with the complete class name used on the petitions.
+     * @param servlet the StreamingServlet that answers them.
+     */
+    public void register(String className, StreamingServlet servlet) {
+        servlets.put(className, servlet);
+        unknown.remove(className);
+    }
+
+    /**
+     * Gives the number of servlets already created.
+     * @return an int with the number of registered servlets.
+     */
+    public int size() {
+        return servlets.size();
+    }
+
+    /**
+     * Creates a servlet by reflection.
+     * @return the new StreamingServlet, or null if the class doesn't exist or isn't a public servlet.
+     */
+    private static StreamingServlet create(String className) {
+        // Only the classes of this package can be served
+        if (!className.startsWith(PACKAGE) || className.indexOf('.', PACKAGE.length()) >= 0) return null;
+        try {
+            Class<?> servletClass = Class.forName(className, false, ServletRegistry.class.getClassLoader());
+            if (servletClass.isInterface() || Modifier.isAbstract(servletClass.getModifiers())) return null;
+            if (StreamingServlet.class.isAssignableFrom(servletClass))
+                return (StreamingServlet) servletClass.getDeclaredConstructor().newInstance();
+            if (!MiniServlet.class.isAssignableFrom(servletClass)) return null;
+            return new MiniServletAdapter((MiniServlet) servletClass.getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Registers every servlet class found on the directory or jar of this package.
+     */
+    private void scan() {
+        try {
+            Enumeration<URL> locations = ServletRegistry.class.getClassLoader().getResources(PACKAGE.replace('.', '/'));
+            while (locations.hasMoreElements()) {
+                URL location = locations.nextElement();
+                if (location.getProtocol().equals("file")) {
+                    File[] classes = new File(URLDecoder.decode(location.getPath(), StandardCharsets.UTF_8)).listFiles();
+                    if (classes == null) continue;
+                    for (File classFile : classes) scanClass(classFile.getName());
+                } else if (location.getProtocol().equals("jar")) {
+                    JarURLConnection connection = (JarURLConnection) location.openConnection();
+                    // A private copy of the jar, so closing it doesn't affect the class loader
+                    connection.setUseCaches(false);
+                    try (JarFile jar = connection.getJarFile()) {
+                        Enumeration<JarEntry> entries = jar.entries();
+                        String prefix = PACKAGE.replace('.', '/');
+                        while (entries.hasMoreElements()) {
+                            String name = entries.nextElement().getName();
+                            if (name.startsWith(prefix)) scanClass(name.substring(prefix.length()));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Cannot scan servlets");
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void scanClass(String fileName) {
+        if (!fileName.endsWith(".class") || fileName.indexOf('$') >= 0 || fileName.indexOf('/') >= 0) return;
+        lookup(PACKAGE + fileName.substring(0, fileName.length() - ".class".length()));
+    }
+}
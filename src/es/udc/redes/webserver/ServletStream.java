@@ -0,0 +1,306 @@
+package es.udc.redes.webserver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs a StreamingServlet and gives its page, piece by piece, to
+ * the connection that sends it. The servlet writes on its own thread; the
+ * pieces wait on a queue of PIECES pieces of PIECE_SIZE bytes, so a servlet that
+ * writes faster than the client reads waits for it instead of filling the memory.
+ * If the connection is closed the servlet gets an IOException on its next write.
+ * The servlet runs on the ServletExecutor, so it counts against its limits,
+ * and it has SERVLET_TIMEOUT milliseconds to write each piece; if it takes
+ * longer the page fails and the servlet is cancelled.
+ * The blocking engine waits for the pieces with next(). The NioWebServer uses
+ * poll(), that never waits: the connection is woken up when the servlet puts
+ * the piece, or when its time is over.
+ * @author Miguel Blanco Godón.
+ */
+final class ServletStream implements HttpResponse.Source {
+    private static final int PIECE_SIZE = 8192;
+    private static final int PIECES = 4;
+
+    private final BlockingQueue<Piece> queue = new ArrayBlockingQueue<>(PIECES);
+    private final String name;
+    private final long timeoutMillis;
+    private volatile boolean closed;
+    private volatile Future<?> writer;
+    // Run by put() when poll() is waiting for a piece
+    private final AtomicReference<Runnable> ready = new AtomicReference<>();
+    // Ends the wait of poll() after SERVLET_TIMEOUT milliseconds
+    private HashedTimerWheel.Timeout timer;
+    private volatile boolean timedOut;
+    // The first piece, taken by await()
+    private Piece first;
+    private boolean finished;
+
+    private ServletStream(String name) {
+        this.name = name;
+        this.timeoutMillis = ServletExecutor.getInstance().getTimeout();
+    }
+
+    /**
+     * Starts a servlet on the ServletExecutor.
+     * @param servlet the StreamingServlet to run.
+     * @param parameters a pair "key,value" with each variable name and it's value.
+     * @return the ServletStream that gives the page.
+     * @throws RejectedExecutionException if the servlet or the pool are busy.
+     */
+    static ServletStream start(StreamingServlet servlet, Map<String, String> parameters) {
+        String name = parameters.get("0x0Codename");
+        ServletStream stream = new ServletStream(name);
+        stream.writer = ServletExecutor.getInstance().submit(name, () -> {
+            stream.write(servlet, parameters);
+            return null;
+        });
+        return stream;
+    }
+
+    /**
+     * Waits until the servlet writes its first piece, ends or fails, at most SERVLET_TIMEOUT milliseconds.
+     * @return true if the servlet has written something or ended, false if it failed before writing anything.
+     * @throws IOException if the thread is interrupted while waiting.
+     * @throws TimeoutException if the servlet wrote nothing in time.
+     */
+    boolean await() throws IOException, TimeoutException {
+        if (first == null) {
+            try {
+                first = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the servlet");
+            }
+            if (first == null) {
+                ServletExecutor.getInstance().timedOut(name);
+                throw new TimeoutException("The servlet wrote nothing in time");
+            }
+        }
+        return first.error == null;
+    }
+
+    /**
+     * Tells if the whole page fits in the first piece, so it can be sent with a Content-Length.
+     * Must be called after await().
+     * @return true if the servlet has already ended.
+     */
+    boolean isComplete() {
+        return first != null && first.last;
+    }
+
+    /**
+     * Gives the whole page of a servlet that has already ended.
+     * @return a byte[] with the page.
+     */
+    byte[] getContent() {
+        ByteBuffer data = first.data.duplicate();
+        byte[] content = new byte[data.remaining()];
+        data.get(content);
+        return content;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        while (!finished) {
+            ByteBuffer data = use(first != null ? first : take());
+            if (data != null) return data;
+        }
+        return null;
+    }
+
+    @Override
+    public ByteBuffer poll(Runnable ready) throws IOException {
+        while (!finished) {
+            Piece piece = first != null ? first : queue.poll();
+            if (piece == null) {
+                this.ready.set(ready);
+                // A piece put before the Runnable was set hasn't run it
+                piece = queue.poll();
+                if (piece == null) {
+                    if (timedOut) throw timeout();
+                    if (timer == null) timer = HashedTimerWheel.getInstance().schedule(this::expire, timeoutMillis);
+                    return NOT_READY;
+                }
+                this.ready.set(null);
+            }
+            if (timer != null) {
+                // The next piece has its own SERVLET_TIMEOUT
+                timer.cancel();
+                timer = null;
+                timedOut = false;
+            }
+            ByteBuffer data = use(piece);
+            if (data != null) return data;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (timer != null) timer.cancel();
+        // Makes room for a servlet waiting to put a piece, it will see the stream closed
+        queue.clear();
+        Future<?> task = writer;
+        if (task != null) task.cancel(true);
+    }
+
+    /**
+     * Gives the bytes of a piece taken from the queue.
+     * @return a ByteBuffer with the bytes, or null if the piece is empty.
+     */
+    private ByteBuffer use(Piece piece) throws IOException {
+        first = null;
+        if (piece.error != null) {
+            finished = true;
+            throw new IOException("Servlet failed: " + piece.error.getMessage(), piece.error);
+        }
+        if (piece.last) finished = true;
+        return piece.data.hasRemaining() ? piece.data : null;
+    }
+
+    private Piece take() throws IOException {
+        Piece piece;
+        try {
+            piece = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the servlet");
+        }
+        if (piece == null) throw timeout();
+        return piece;
+    }
+
+    /**
+     * Ends the wait of poll() when the servlet took too long, on the timer thread.
+     */
+    private void expire() {
+        timedOut = true;
+        wake();
+    }
+
+    private void wake() {
+        Runnable task = ready.getAndSet(null);
+        if (task != null) task.run();
+    }
+
+    /**
+     * Cancels a servlet that wrote nothing in SERVLET_TIMEOUT milliseconds.
+     * @return the IOException that ends the page.
+     */
+    private IOException timeout() {
+        finished = true;
+        close();
+        ServletExecutor.getInstance().timedOut(name);
+        return new IOException("The servlet wrote nothing in " + timeoutMillis + " ms");
+    }
+
+    /**
+     * Runs the servlet, on a thread of the ServletExecutor.
+     */
+    private void write(StreamingServlet servlet, Map<String, String> parameters) throws Exception {
+        Pieces pieces = new Pieces();
+        try {
+            Writer output = new OutputStreamWriter(pieces, Charset.defaultCharset());
+            servlet.doGet(parameters, output);
+            // The last bytes are sent as the last piece, not on a piece of their own
+            pieces.ending = true;
+            output.close();
+        } catch (Exception e) {
+            if (closed) return;
+            HttpUtils.errorLog("Cannot create dynamic resource " + name + ": " + e.getMessage());
+            try {
+                put(new Piece(null, true, e));
+            } catch (IOException ex) {
+                // The stream was closed meanwhile
+            }
+            // Counted as a failure of the servlet
+            throw e;
+        }
+    }
+
+    private void put(Piece piece) throws IOException {
+        try {
+            while (!queue.offer(piece, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) throw new IOException("Connection closed");
+            }
+            if (closed) queue.clear();
+            else wake();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing");
+        }
+    }
+
+    /**
+     * A piece of the page, the last one or the failure of the servlet.
+     */
+    private static final class Piece {
+        private final ByteBuffer data;
+        private final boolean last;
+        private final Exception error;
+
+        Piece(ByteBuffer data, boolean last, Exception error) {
+            this.data = data;
+            this.last = last;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The stream the servlet writes on, cut in pieces of PIECE_SIZE bytes.
+     * flush() sends the bytes written so far, so servlets can send the start of the page early.
+     */
+    private final class Pieces extends OutputStream {
+        private byte[] buffer = new byte[PIECE_SIZE];
+        private int count;
+        private boolean ending;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) send(false);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) send(false);
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            if (!ending && count > 0) send(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            send(true);
+        }
+
+        private void send(boolean last) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            put(new Piece(ByteBuffer.wrap(buffer, 0, count), last, null));
+            buffer = new byte[PIECE_SIZE];
+            count = 0;
+        }
+    }
+}
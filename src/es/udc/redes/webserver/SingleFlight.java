@@ -0,0 +1,73 @@
+package es.udc.redes.webserver;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * This class lets only one thread compute a value at a time for each key: the
+ * first thread that asks for it computes it, and the ones that ask for the same
+ * key meanwhile wait and get the same value, or the same exception. It is put in
+ * front of the loads that fill the caches, so a file that changed or a page that
+ * becomes popular is read or generated once and not by every connection at once.
+ * Waiting threads give up after a while and compute the value themselves, so a
+ * slow load doesn't hold every connection that needs the same key. An event loop
+ * of the NioWebServer never waits for another thread: NioWebServer.mayBlock()
+ * hands its petition to a dispatcher thread, which can wait.
+ * @author Miguel Blanco Godón.
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public final class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * Gives the value of a key, computing it only if no other thread is already doing it.
+     * @param key the key of the value.
+     * @param loader the Supplier that computes the value.
+     * @param waitMillis a long with the milliseconds to wait for another thread, after them the value is computed again.
+     * @return the value computed by this thread or by the one that was computing it.
+     * @throws RuntimeException the exception of the loader, also on the threads that waited for it.
+     * @throws NioWebServer.WouldBlockException if another thread is computing the value and this is an event loop.
+     */
+    public V get(K key, Supplier<V> loader, long waitMillis) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, call);
+        if (running == null) {
+            try {
+                V value = loader.get();
+                call.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, call);
+            }
+        }
+        NioWebServer.mayBlock();
+        try {
+            return running.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            return loader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return loader.get();
+        }
+    }
+
+    /**
+     * Gives the number of keys being computed now.
+     * @return an int with the number of keys.
+     */
+    public int getRunning() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,332 @@
+package es.udc.redes.webserver;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class checks the answers generated while they are sent: the pages of
+ * a StreamingServlet (the Tabla example) and the directory listings bigger
+ * than LISTING_MAX_BYTES. It runs the code of the blocking engine on a
+ * connection that is never opened, and a NioWebServer with one event loop on
+ * a free port, and checks:
+ * - that the streamed pages and listings arrive whole, with their chunks on
+ *   HTTP/1.1 and until the connection is closed on HTTP/1.0, and that a
+ *   persistent connection answers the next petition after a chunked page;
+ * - that a servlet waiting longer than SERVLET_TIMEOUT for a piece that isn't
+ *   the first one ends its page and is counted as a timeout, on both engines;
+ * - that the event loop answers other connections while a servlet is slow
+ *   and while a big directory is read.
+ * The server directory is copied to a temporary one first, like HotPathBenchmark does.
+ * It prints the failed checks and exits with status 1 if there are any.
+ * @author Miguel Blanco Godón.
+ */
+public final class StreamingCheck {
+    private static final String SERVLET = "es.udc.redes.webserver.Tabla";
+    private static final long SERVLET_TIMEOUT = 1000;
+    private static final int FILES = 3000;
+    // Time the event loop may take to answer a small file while other connections wait
+    private static final long LOOP_MILLIS = 200;
+
+    private final ConfFile configFile;
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * Runs the check.
+     * @param argv a String array with the server directory, p1/resources by default.
+     * @throws IOException if the directory cannot be copied or the server cannot be started.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length > 1) {
+            System.err.println("Format: StreamingCheck [<directory>]");
+            System.exit(-1);
+        }
+        Path source = Paths.get(argv.length > 0 ? argv[0] : "p1/resources");
+        Path directory = Files.createTempDirectory("webserver-streaming");
+        List<String> failures;
+        try {
+            HotPathBenchmark.copy(source, directory);
+            Path big = Files.createDirectory(directory.resolve("big"));
+            for (int i = 0; i < FILES; i++) Files.createFile(big.resolve("file_" + i + ".txt"));
+            StreamingCheck check = new StreamingCheck(directory);
+            check.checkBlocking();
+            check.checkNio();
+            failures = check.failures;
+            for (String failure : failures) System.out.println(failure);
+        } finally {
+            AccessLogger.getInstance().shutdown();
+            HotPathBenchmark.delete(directory);
+        }
+        System.out.println(failures.isEmpty() ? "OK" : "FAILED");
+        // The event loops of the NioWebServer never end
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private StreamingCheck(Path directory) throws IOException {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        this.configFile = HotPathBenchmark.configure(directory, "PORT: " + port, "NIO_LOOPS: 1",
+                "SERVLET_TIMEOUT: " + SERVLET_TIMEOUT, "LISTING_MAX_BYTES: 4096");
+    }
+
+    /**
+     * Checks the code the blocking engine runs, writing the answers on memory.
+     */
+    private void checkBlocking() {
+        HotPathBenchmark.Connection connection = new HotPathBenchmark.Connection(configFile);
+        Answer page = Answer.read(write(HttpUtils.parse("GET /Tabla.do?filas=1000 HTTP/1.1\r\nHost: localhost\r\n\r\n", connection)));
+        checkTable("blocking, HTTP/1.1 page", page, 1000);
+        checkListing("blocking, HTTP/1.1 listing", Answer.read(write(HttpUtils.parse("GET /big/ HTTP/1.1\r\n\r\n", connection))));
+        long timeouts = timeouts();
+        HttpResponse slow = HttpUtils.parse("GET /Tabla.do?filas=300&pausa=" + SERVLET_TIMEOUT * 3 / 2 + " HTTP/1.1\r\n\r\n", connection);
+        long start = System.nanoTime();
+        try {
+            slow.writeTo(OutputStream.nullOutputStream(), null);
+            failures.add("blocking, slow page: sent whole, SERVLET_TIMEOUT wasn't applied to every piece");
+        } catch (IOException e) {
+            checkElapsed("blocking, slow page", start);
+        } finally {
+            slow.close();
+        }
+        if (timeouts() != timeouts + 1) failures.add("blocking, slow page: the timeout of the servlet wasn't counted");
+    }
+
+    /**
+     * Checks a NioWebServer with one event loop.
+     */
+    private void checkNio() throws IOException {
+        Thread server = new Thread(() -> {
+            try {
+                new NioWebServer(configFile).serve();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }, "streaming-check-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer();
+        try (Socket slow = connect(); Socket other = connect()) {
+            // 5 pieces, each one 300 ms after the previous one
+            send(slow, "GET /Tabla.do?filas=500&pausa=300 HTTP/1.1\r\n\r\n");
+            sleep(450);
+            checkLoop("NIO, while a servlet is slow", other, "GET /index.html HTTP/1.1\r\n\r\n");
+            checkTable("NIO, HTTP/1.1 slow page", Answer.read(slow.getInputStream()), 500);
+            // The chunked page leaves the connection ready for the next petition
+            send(slow, "GET /index.html HTTP/1.1\r\n\r\n");
+            if (Answer.read(slow.getInputStream()).status != 200) failures.add("NIO: no answer after a chunked page");
+        }
+        try (Socket page = connect()) {
+            send(page, "GET /Tabla.do?filas=1000 HTTP/1.0\r\n\r\n");
+            checkTable("NIO, HTTP/1.0 page", Answer.read(page.getInputStream()), 1000);
+        }
+        try (Socket listing = connect(); Socket other = connect()) {
+            send(listing, "GET /big/ HTTP/1.1\r\n\r\n");
+            checkLoop("NIO, while a big directory is read", other, "GET /index.html HTTP/1.1\r\n\r\n");
+            checkListing("NIO, HTTP/1.1 listing", Answer.read(listing.getInputStream()));
+            send(listing, "GET /big/ HTTP/1.0\r\n\r\n");
+            checkListing("NIO, HTTP/1.0 listing", Answer.read(listing.getInputStream()));
+        }
+        long timeouts = timeouts();
+        try (Socket slow = connect()) {
+            send(slow, "GET /Tabla.do?filas=300&pausa=" + SERVLET_TIMEOUT * 3 / 2 + " HTTP/1.1\r\n\r\n");
+            InputStream input = slow.getInputStream();
+            Answer.head(input);
+            long start = System.nanoTime();
+            Answer answer = Answer.body(input, 200, -1, true);
+            if (answer.complete) failures.add("NIO, slow page: sent whole, SERVLET_TIMEOUT wasn't applied to every piece");
+            else checkElapsed("NIO, slow page", start);
+        }
+        if (timeouts() != timeouts + 1) failures.add("NIO, slow page: the timeout of the servlet wasn't counted");
+    }
+
+    private void checkTable(String name, Answer answer, int rows) {
+        String page = answer.text();
+        if (answer.status != 200 || !answer.complete) {
+            failures.add(name + ": status " + answer.status + (answer.complete ? "" : ", incomplete"));
+        } else if (!page.endsWith("</table></body></html>") || !page.contains("<tr><td>" + rows + "</td><td>" + (long) rows * rows + "</td></tr>\n")
+                || page.split("<tr>", -1).length != rows + 1) {
+            failures.add(name + ": the table doesn't have " + rows + " rows");
+        }
+    }
+
+    private void checkListing(String name, Answer answer) {
+        String page = answer.text();
+        if (answer.status != 200 || !answer.complete) {
+            failures.add(name + ": status " + answer.status + (answer.complete ? "" : ", incomplete"));
+        } else if (!page.endsWith("</html>\n") || page.split("file_", -1).length != FILES * 2 + 1) {
+            failures.add(name + ": the listing doesn't have " + FILES + " files");
+        }
+    }
+
+    /**
+     * Checks that the event loop answers a petition at once.
+     */
+    private void checkLoop(String name, Socket socket, String petition) throws IOException {
+        long start = System.nanoTime();
+        send(socket, petition);
+        int status = Answer.read(socket.getInputStream()).status;
+        long millis = (System.nanoTime() - start) / 1000000;
+        if (status != 200 || millis > LOOP_MILLIS) failures.add(name + ": status " + status + " after " + millis + " ms");
+    }
+
+    /**
+     * Checks that a page stopped about SERVLET_TIMEOUT milliseconds after its first piece.
+     */
+    private void checkElapsed(String name, long start) {
+        long millis = (System.nanoTime() - start) / 1000000;
+        if (millis < SERVLET_TIMEOUT - 200 || millis > SERVLET_TIMEOUT + 1000)
+            failures.add(name + ": ended after " + millis + " ms, SERVLET_TIMEOUT is " + SERVLET_TIMEOUT);
+    }
+
+    private static long timeouts() {
+        ServletExecutor.Stats stats = ServletExecutor.getInstance().getStats().get(SERVLET);
+        return stats == null ? 0 : stats.getTimeouts();
+    }
+
+    private static byte[] write(HttpResponse answer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            answer.writeTo(output, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            answer.close();
+        }
+        return output.toByteArray();
+    }
+
+    private void waitForServer() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            // The first answer also loads the classes and caches used by the timed ones
+            try (Socket socket = connect()) {
+                send(socket, "GET /index.html HTTP/1.0\r\n\r\n");
+                Answer.read(socket.getInputStream());
+                return;
+            } catch (IOException e) {
+                sleep(100);
+            }
+        }
+        throw new IOException("The NioWebServer didn't start on port " + configFile.getPort());
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", configFile.getPort());
+        socket.setSoTimeout(30000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String petition) throws IOException {
+        socket.getOutputStream().write(petition.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An answer read from a connection, its body decoded.
+     */
+    private static final class Answer {
+        private final int status;
+        private final byte[] body;
+        // False if the connection was closed before the end of the body
+        private final boolean complete;
+
+        private Answer(int status, byte[] body, boolean complete) {
+            this.status = status;
+            this.body = body;
+            this.complete = complete;
+        }
+
+        static Answer read(byte[] answer) {
+            try {
+                return read(new ByteArrayInputStream(answer));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Reads an answer, framed by its Content-Length, its chunks or the end of the connection.
+         */
+        static Answer read(InputStream input) throws IOException {
+            if (!(input instanceof BufferedInputStream)) input = new BufferedInputStream(input, 1);
+            List<String> head = head(input);
+            int status = head.isEmpty() ? 0 : Integer.parseInt(head.get(0).split(" ")[1]);
+            long length = -1;
+            boolean chunked = false;
+            for (String line : head) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:")) length = Long.parseLong(line.substring(15).trim());
+                if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) chunked = true;
+            }
+            return body(input, status, length, chunked);
+        }
+
+        static List<String> head(InputStream input) throws IOException {
+            List<String> lines = new ArrayList<>();
+            for (String line = line(input); line != null && !line.isEmpty(); line = line(input)) lines.add(line);
+            return lines;
+        }
+
+        static Answer body(InputStream input, int status, long length, boolean chunked) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                if (chunked) {
+                    while (true) {
+                        String size = line(input);
+                        if (size == null) return new Answer(status, body.toByteArray(), false);
+                        int chunk = Integer.parseInt(size.trim(), 16);
+                        if (chunk == 0) {
+                            line(input);
+                            return new Answer(status, body.toByteArray(), true);
+                        }
+                        byte[] data = input.readNBytes(chunk);
+                        body.write(data);
+                        if (data.length < chunk || line(input) == null) return new Answer(status, body.toByteArray(), false);
+                    }
+                }
+                if (length >= 0) {
+                    byte[] data = input.readNBytes((int) length);
+                    return new Answer(status, data, data.length == length);
+                }
+                input.transferTo(body);
+            } catch (IOException e) {
+                // Reset by the server
+                return new Answer(status, body.toByteArray(), false);
+            }
+            return new Answer(status, body.toByteArray(), true);
+        }
+
+        private static String line(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = input.read()) != '\n') {
+                if (b < 0) return null;
+                if (b != '\r') line.append((char) b);
+            }
+            return line.toString();
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
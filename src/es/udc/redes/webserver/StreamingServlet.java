@@ -0,0 +1,27 @@
+package es.udc.redes.webserver;
+
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A servlet that writes its page while it is generated, instead of returning
+ * it as a whole String like a MiniServlet. The page is sent with
+ * "Transfer-Encoding: chunked" on HTTP/1.1 (and until the connection is closed
+ * on HTTP/1.0), so the first bytes leave before the last ones are written and
+ * big pages are never whole in memory. Pages shorter than a piece are sent with
+ * their Content-Length, as the ones of a MiniServlet.
+ * Servlets are resolved by ServletRegistry like the MiniServlet ones, and the
+ * instance is shared by every connection.
+ * @author Miguel Blanco Godón.
+ */
+public interface StreamingServlet {
+
+	/**
+	 * Writes the page of a .do petition.
+	 * @param parameters a pair "key,value" with each variable name and it's value.
+	 * @param output a Writer where the page is written. Writing may wait until the client receives what was written before.
+	 * @throws Exception if the page cannot be generated; if part of it was already sent the connection is closed.
+	 */
+	public void doGet (Map<String, String> parameters, Writer output) throws Exception;
+
+}
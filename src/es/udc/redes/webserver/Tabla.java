@@ -0,0 +1,53 @@
+package es.udc.redes.webserver;
+
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * This class is an example of StreamingServlet: it writes a table with the
+ * squares of the numbers up to "filas", sending it every 100 rows, and waits
+ * "pausa" milliseconds before each block, like a page built from a slow source.
+ * @author Miguel Blanco Godón.
+ */
+public class Tabla implements StreamingServlet {
+	private static final int BLOCK = 100;
+
+        /* Para el correcto funcionamiento es necesario un constructor
+	 * sin parámetros y público */
+	public Tabla(){
+
+	}
+
+        @Override
+	public void doGet (Map<String, String> parameters, Writer output) throws Exception {
+		int filas = number(parameters.get("filas"), 100);
+		long pausa = number(parameters.get("pausa"), 0);
+
+		output.write(printHeader());
+		for (int i = 1; i <= filas; i++) {
+			if (i % BLOCK == 1) {
+				// The rows written so far leave before the pause
+				output.flush();
+				if (pausa > 0) Thread.sleep(pausa);
+			}
+			output.write("<tr><td>" + i + "</td><td>" + (long) i * i + "</td></tr>\n");
+		}
+		output.write(printEnd());
+	}
+
+	private static int number(String value, int byDefault) {
+		try {
+			return value == null ? byDefault : Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return byDefault;
+		}
+	}
+
+	private String printHeader() {
+		return "<html><head> <title>Squares</title> </head> <body> <table>\n";
+	}
+
+	private String printEnd() {
+		return "</table></body></html>";
+	}
+}
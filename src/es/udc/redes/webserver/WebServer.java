@@ -1,22 +1,31 @@
 package es.udc.redes.webserver;
 import java.net.*;
 import java.io.*;
-import javax.net.ServerSocketFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * 
- * This class creates a multi-thread HTTP/1.0 server. 
+ * This class creates a multi-thread HTTP/1.0 server. Connections are run on
+ * a bounded pool or on virtual threads (see ConnectionExecutor), as long as
+ * AdmissionControl lets them in. The listening socket keeps up to ACCEPT_BACKLOG
+ * connections waiting to be accepted. A connection that cannot be accepted is
+ * logged and the server keeps accepting the next ones.
  * 
  * @author Miguel Blanco Godón
  * 
  */
 public class WebServer {
     static private ConfFile configFile;
+    private static final long ACCEPT_PAUSE_MS = 100;
     /**
      * Starts a HTTP/1.0 web server and starts listening for incoming communications.
-     * When a connection appears it creates a thread to manage the connection.
+     * When a connection appears it gives a task to the connection executor to manage it,
+     * unless the non-blocking NioWebServer engine is selected on the configuration file.
      * @param argv a String giving the parameters to start the program.
-     * @throws IOException if no connections are established within 5 minutes(300 seconds).
+     * It runs until it is stopped, however long it goes without connections.
+     * @throws IOException if the server socket cannot be opened.
      */
     public static void main(String[] argv) throws IOException {
         // Checks if the syntax is ok
@@ -25,40 +34,81 @@ public class WebServer {
             System.exit(-1);
         }
         
-        configFile = new ConfFile();
+        // Reads server_properties.txt and reloads it whenever it changes
+        configFile = ServerConfig.load();
+        
+        // The non-blocking engine is selected with "ENGINE: nio"
+        if (configFile.getOption("ENGINE", "blocking").equals("nio")) {
+            new NioWebServer(configFile).serve();
+            return;
+        }
         
         ServerSocket tcpSocket = null;
-        ServerSocketFactory serverFactory;
         WebServerThread serverThread;
+        ExecutorService executor = ConnectionExecutor.create(configFile);
+        ServerConfig.addListener(newConfig -> ConnectionExecutor.resize(executor, newConfig));
         try {
             // Creates a server socket
-            // It is created with ServerSocketFactory because using this class
-            // the socket adequates to the local firewall
-            
-            serverFactory = ServerSocketFactory.getDefault();
+            // It is created from a ServerSocketChannel so the accepted sockets
+            // have a SocketChannel, needed to send big files with transferTo
             
-            tcpSocket = serverFactory.createServerSocket(configFile.getPort());
-            // Sets a timeout of 300 secs
-            tcpSocket.setSoTimeout(300000);
+            tcpSocket = ServerSocketChannel.open().socket();
+            tcpSocket.bind(new InetSocketAddress(configFile.getPort()), configFile.getIntOption("ACCEPT_BACKLOG", 128));
             
             Socket customerSocket;
             while (true) {
                 // Waits for connections
-                customerSocket = tcpSocket.accept();
+                try {
+                    customerSocket = tcpSocket.accept();
+                } catch (IOException e) {
+                    if (tcpSocket.isClosed()) throw e;
+                    acceptFailed(e);
+                    continue;
+                }
+                // Above the connection limit the client gets a 503 at once
+                if (!AdmissionControl.getInstance().tryAcquire()) {
+                    AdmissionControl.reject(customerSocket.getChannel());
+                    continue;
+                }
                 
-                serverThread = new WebServerThread(customerSocket, configFile);
+                serverThread = new WebServerThread(customerSocket, ServerConfig.current());
                 
-                serverThread.start();
+                try {
+                    executor.execute(serverThread);
+                } catch (RejectedExecutionException e) {
+                    // Every worker is busy and the queue is full, so the connection is rejected
+                    System.err.println("Error: Connection rejected, server is overloaded");
+                    AdmissionControl.getInstance().release();
+                    AdmissionControl.reject(customerSocket.getChannel());
+                }
+                // Idle keep-alive connections give their workers to the ones waiting
+                if (ConnectionExecutor.hasWaiting()) WebServerThread.releaseIdleWorkers(ServerConfig.current());
                 
             }            
-        } catch (SocketTimeoutException e) {
-            System.err.println("Nothing received in 300 secs ");
-        } catch (Exception e) {
+        } catch (IOException e) {
+            // Only opening the socket ends the server, a failed accept doesn't
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
         } finally {
             // Closes the socket if it is not null
             if (tcpSocket != null) tcpSocket.close();
+            // Lets the running connections finish
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Logs a connection that couldn't be accepted, like when there are no file
+     * descriptors left, and waits ACCEPT_PAUSE_MS milliseconds before accepting
+     * again, so the acceptor doesn't spin while the cause lasts.
+     * @param e the IOException thrown by accept.
+     */
+    static void acceptFailed(IOException e) {
+        System.err.println("Error: Cannot accept a connection: " + e.getMessage());
+        try {
+            Thread.sleep(ACCEPT_PAUSE_MS);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
     
@@ -2,22 +2,37 @@ package es.udc.redes.webserver;
 import java.io.*;
 import java.net.*;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
- * This class implements a thread that answers a HTTP/1.0 or HTTP/1.1 petition.
+ * This class implements a task that answers the HTTP/1.0 or HTTP/1.1 petitions
+ * of a connection, keeping it open (keep-alive) when the client asks for it.
  * It implements GET and HEAD method. It is compatible with plain text, html, 
  * pdf, gif and png.
  * The HTTP codes implemented are 200, 304, 400, 403 and 404. 
  * Also, it creates and updates two log files: access_logs.txt and errors_logs.txt 
  * where statistics of the connection to the server are stored.
+ * It is run by the executor created by ConnectionExecutor.
  * @author Miguel Blanco Godón.
  * 
  */
-public class WebServerThread extends Thread {
+public class WebServerThread implements Runnable, HttpConnection {
+    // Keep-alive connections holding a worker while they wait for their next petition
+    private static final Set<WebServerThread> idle = ConcurrentHashMap.newKeySet();
     private final Socket customerSocket;
     private Date receptionTime;
-    private final ConfFile configFile;
+    // The configuration of the current petition, taken from ServerConfig
+    private ConfFile configFile;
+    private boolean keepAlive;
+    // Number of petitions answered on this connection
+    private int answered;
+    // When the connection was accepted, to measure how long it waited for a worker
+    private final long acceptTime = System.nanoTime();
+    // Closes the socket when the client takes too long to send a petition
+    private final ConnectionDeadline deadline = new ConnectionDeadline(this::expire);
+    private volatile boolean expired;
     
     /**
      * This is the WebServerThread constructor.
@@ -25,7 +40,6 @@ public class WebServerThread extends Thread {
      * @param cF a ConfFile, where some server info is.
      */
     public WebServerThread(Socket cs, ConfFile cF) {
-        super();
         this.customerSocket = cs;
         this.configFile = cF;
     }
@@ -38,10 +52,20 @@ public class WebServerThread extends Thread {
         return customerSocket;
     }
     
+    /**
+     * Gives the address of the client side of the connection.
+     * @return a SocketAddress with the client IP address and port.
+     */
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return customerSocket.getRemoteSocketAddress();
+    }
+    
     /**
      * Gives the time when the message was received.
      * @return a Date in Date class format. 
      */
+    @Override
     public Date getReceptionTime() {
         return receptionTime;
     }
@@ -50,49 +74,102 @@ public class WebServerThread extends Thread {
      * Gives the ConfFile containing some server info.  
      * @return a ConfFile with port, directory_index, working directory and allow clause info. 
      */
+    @Override
     public ConfFile getConfigurationFile() {
         return configFile;
     }
     
     /**
-     * Receives a HTTP message, processes it, creates a HTTP/1.0 answer and sends it back.
+     * Tells if the connection stays open after answering the current petition.
+     * @return true on a persistent (keep-alive) connection.
+     */
+    @Override
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+    
+    /**
+     * Sets if the connection stays open after answering the current petition.
+     * The last petition allowed by KEEP_ALIVE_MAX always closes the connection.
+     * @param keepAlive a boolean, true to keep the connection open.
+     */
+    @Override
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive && answered + 1 < configFile.getKeepAliveMax();
+    }
+    
+    /**
+     * Receives HTTP messages, processes them, creates the answers and sends them back.
+     * On persistent connections it keeps answering petitions, in the order they
+     * were received, until the client closes the connection or misses one of
+     * the deadlines of ConnectionDeadline.
      */
     @Override
     public void run() {
-                
+        ServerMetrics.getInstance().connectionOpened();
+        AdmissionControl.getInstance().record(System.nanoTime() - acceptTime);
         try {
                 // Sets the input channel
-                InputStream input = new BufferedInputStream(customerSocket.getInputStream());
+                InputStream input = customerSocket.getInputStream();
                 // Sets the output channel
                 OutputStream output = new BufferedOutputStream(customerSocket.getOutputStream());
-                // Sets an array to get the data
-                byte data[] = new byte[1024];
-                
-                int readBytes;
-                // Receives the client message
-                readBytes = input.read(data);
+                // Sets an array to get the data, it may contain several pipelined petitions
+                byte data[] = new byte[8192];
+                int position = 0;
+                int length = 0;
+                HttpRequestParser parser = new HttpRequestParser(configFile);
                 
-                
-                // Saves the local time when the message was readed 
-                this.receptionTime = new Date();
-                
-                
-                // sets a byte array to save the answer
-                byte answer[] = HttpUtils.parse(new String(data),this);
-                
-                // Sends response to the client
-                if (readBytes > 0) {
-                    output.write(answer);
-                    output.flush();
+                while (true) {
+                    if (position == length) {
+                        // Sends the answers given so far before waiting for more data
+                        output.flush();
+                        // The deadline of the petition runs from its first byte, not from each read
+                        deadline.watch(parser, answered == 0, configFile);
+                        boolean waiting = answered > 0 && !parser.isStarted();
+                        if (waiting) {
+                            idle.add(this);
+                            // Other connections need this worker more than an idle client
+                            if (ConnectionExecutor.hasWaiting()) deadline.shorten(busyTimeout(configFile));
+                        }
+                        // Receives the client message
+                        try {
+                            length = input.read(data);
+                        } finally {
+                            if (waiting) idle.remove(this);
+                        }
+                        if (length < 0) break;
+                        position = 0;
+                    }
+                    position += parser.feed(data, position, length - position);
+                    if (!parser.isDone()) continue;
+                    deadline.cancel();
+                    
+                    // Saves the local time when the message was readed 
+                    this.receptionTime = new Date();
+                    // Answers with the configuration in use when the petition arrived
+                    this.configFile = ServerConfig.current();
+                    
+                    // Sends response to the client
+                    HttpResponse answer = HttpUtils.parse(parser.getRequest(), this);
+                    // The socket has KEEP_ALIVE_TIMEOUT milliseconds to take each slice of the answer,
+                    // the last one included, which is flushed before reading again
+                    deadline.watchWrite(configFile);
+                    answer.writeTo(output, customerSocket.getChannel(), () -> deadline.watchWrite(configFile));
+                    answered++;
+                    parser.reset();
+                    if (!keepAlive) break;
                 }
+                output.flush();
                 // Closes the streams
                 input.close();
                 output.close();
-        } catch (SocketTimeoutException e){
-            System.err.println("Nothing received in 300 secs");
         } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
+            // A socket closed by its deadline isn't an error
+            if (!expired) System.err.println("Error: " + e.getMessage());
         } finally {
+            deadline.cancel();
+            ServerMetrics.getInstance().connectionClosed();
+            AdmissionControl.getInstance().release();
             try {
                 // Tryes to close the socket
                 if (customerSocket != null) customerSocket.close();
@@ -101,4 +178,31 @@ public class WebServerThread extends Thread {
             }
         }
     }
+    
+    /**
+     * Brings forward the deadlines of the keep-alive connections waiting for
+     * their next petition, so they give their workers to the connections waiting
+     * on the pool queue. Called when a connection has to wait for a worker.
+     * @param configFile a ConfFile with the KEEP_ALIVE_BUSY_TIMEOUT line.
+     */
+    public static void releaseIdleWorkers(ConfFile configFile) {
+        long millis = busyTimeout(configFile);
+        for (WebServerThread connection : idle) connection.deadline.shorten(millis);
+    }
+    
+    private static long busyTimeout(ConfFile configFile) {
+        return configFile.getIntOption("KEEP_ALIVE_BUSY_TIMEOUT", 100);
+    }
+    
+    /**
+     * Closes the socket when a deadline passes, which ends the read blocked on it.
+     */
+    private void expire() {
+        expired = true;
+        try {
+            customerSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
 }